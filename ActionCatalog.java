@@ -0,0 +1,219 @@
+package A2Code;
+
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import problem.Tire;
+import problem.TirePressure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Every action available in a ProblemSpec, interned once and numbered with
+ * a small int id.
+ *
+ * Ids follow the order Model.getActions has always listed actions in (MOVE,
+ * then changing car, driver, tires, fuel, pressure, car and driver, then
+ * tire, fuel and pressure), so the valid actions of any state sorted by id
+ * are in that order too, MOVE first with id 0.
+ *
+ * Which actions are valid depends only on the car, driver, tire, whether
+ * the tank is below 20 and the tire pressure, so the valid ids for every
+ * such config are worked out up front.
+ */
+public class ActionCatalog {
+
+    // id of MOVE, always valid
+    public static final int MOVE = 0;
+
+    // fuel below this can be topped up with ADD_FUEL
+    private static final int ADD_FUEL_BELOW = 20;
+
+    // fuel added by ADD_FUEL, and by CHANGE_TIRE_FUEL_PRESSURE
+    private static final int FUEL_AMOUNT = 10;
+
+    private final ProblemSpec ps;
+
+    private final int numDrivers;
+    private final int numTires;
+    private final int numPressures;
+
+    // action of each id
+    private final Action[] actions;
+
+    // id of each action's getText()
+    private final HashMap<String, Integer> ids;
+
+    // valid ids and the same actions as a list, for each config
+    private final int[][] valid;
+    private final List<List<Action>> validActions;
+
+    /**
+     * @param ps the ProblemSpec
+     */
+    public ActionCatalog(ProblemSpec ps) {
+        this.ps = ps;
+        List<String> cars = ps.getCarOrder();
+        List<String> drivers = ps.getDriverOrder();
+        List<Tire> tires = ps.getTireOrder();
+        this.numDrivers = drivers.size();
+        this.numTires = Tire.values().length;
+        this.numPressures = TirePressure.values().length;
+
+        List<ActionType> types = ps.getLevel().getAvailableActions();
+        int level = ps.getLevel().getLevelNumber();
+
+        ArrayList<Action> all = new ArrayList<>();
+        all.add(new Action(types.get(0)));
+        for (String car : cars) {
+            all.add(new Action(types.get(1), car));
+        }
+        for (String driver : drivers) {
+            all.add(new Action(types.get(2), driver));
+        }
+        for (Tire t : tires) {
+            all.add(new Action(types.get(3), t));
+        }
+        if (level >= 2) {
+            all.add(new Action(types.get(4), FUEL_AMOUNT));
+            for (TirePressure p : TirePressure.values()) {
+                all.add(new Action(types.get(5), p));
+            }
+        }
+        if (level >= 4) {
+            for (String car : cars) {
+                for (String driver : drivers) {
+                    all.add(new Action(types.get(6), car, driver));
+                }
+            }
+        }
+        if (level >= 5) {
+            for (Tire t : tires) {
+                for (TirePressure p : TirePressure.values()) {
+                    all.add(new Action(types.get(7), t, FUEL_AMOUNT, p));
+                }
+            }
+        }
+        this.actions = all.toArray(new Action[0]);
+        this.ids = new HashMap<>();
+        for (int id = 0; id < actions.length; id++) {
+            ids.put(actions[id].getText(), id);
+        }
+
+        int configs = cars.size() * numDrivers * numTires * 2 * numPressures;
+        this.valid = new int[configs][];
+        this.validActions = new ArrayList<>(
+                Collections.nCopies(configs, (List<Action>) null));
+        for (int car = 0; car < cars.size(); car++) {
+            for (int driver = 0; driver < numDrivers; driver++) {
+                for (int tire = 0; tire < numTires; tire++) {
+                    for (int low = 0; low < 2; low++) {
+                        for (int p = 0; p < numPressures; p++) {
+                            // any state with this config will do
+                            long state = StateCodec.pack(1,
+                                    low == 1 ? 0 : ADD_FUEL_BELOW, car, driver,
+                                    tire, p, false, false);
+                            int c = config(state);
+                            valid[c] = validIds(state);
+                            Action[] list = new Action[valid[c].length];
+                            for (int i = 0; i < list.length; i++) {
+                                list[i] = actions[valid[c][i]];
+                            }
+                            validActions.set(c, Collections.unmodifiableList(
+                                    Arrays.asList(list)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // the ids of the actions that can be taken in state, in id order
+    private int[] validIds(long state) {
+        int[] res = new int[actions.length];
+        int n = 0;
+        for (int id = 0; id < actions.length; id++) {
+            if (isValid(actions[id], state)) {
+                res[n++] = id;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // whether Model.getActions has always offered a in state
+    private boolean isValid(Action a, long state) {
+        switch (a.getActionType()) {
+            case MOVE:
+                return true;
+            case CHANGE_CAR:
+                return !a.getCarType().equals(ps.getCarOrder().get(
+                        StateCodec.car(state)));
+            case CHANGE_DRIVER:
+                return !a.getDriverType().equals(ps.getDriverOrder().get(
+                        StateCodec.driver(state)));
+            case CHANGE_TIRES:
+                return a.getTireModel() != StateCodec.tireOf(state);
+            case ADD_FUEL:
+                return StateCodec.fuel(state) < ADD_FUEL_BELOW;
+            case CHANGE_PRESSURE:
+                return a.getTirePressure() != StateCodec.pressureOf(state);
+            case CHANGE_CAR_AND_DRIVER:
+                return !a.getCarType().equals(ps.getCarOrder().get(
+                        StateCodec.car(state)))
+                        && !a.getDriverType().equals(ps.getDriverOrder().get(
+                        StateCodec.driver(state)));
+            default:
+                return a.getTireModel() != StateCodec.tireOf(state)
+                        && a.getTirePressure() != StateCodec.pressureOf(state);
+        }
+    }
+
+    // config index of a packed state
+    private int config(long state) {
+        int c = StateCodec.car(state) * numDrivers + StateCodec.driver(state);
+        c = c * numTires + StateCodec.tire(state);
+        c = c * 2 + (StateCodec.fuel(state) < ADD_FUEL_BELOW ? 1 : 0);
+        return c * numPressures + StateCodec.pressure(state);
+    }
+
+    // number of actions in the catalog
+    public int size() {
+        return actions.length;
+    }
+
+    public Action action(int id) {
+        return actions[id];
+    }
+
+    /**
+     * Id of an action, which doesn't have to be the catalog's own instance
+     *
+     * @throws IllegalArgumentException if the action isn't in the catalog
+     */
+    public int id(Action a) {
+        Integer id = ids.get(a.getText());
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown action " + a.getText());
+        }
+        return id;
+    }
+
+    /**
+     * Ids of the actions that can be taken in a packed state, in id order.
+     * The array is shared, don't change it.
+     */
+    public int[] valid(long state) {
+        return valid[config(state)];
+    }
+
+    /**
+     * The actions that can be taken in a packed state, in id order
+     */
+    public List<Action> validActions(long state) {
+        return validActions.get(config(state));
+    }
+}
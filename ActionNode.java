@@ -1,60 +1,269 @@
 package A2Code;
 
 import problem.Action;
-import simulator.State;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * ActionNode for MCTS
  * Represents an Action and stores the StateNodes for States incurred from
  * taking this.action
+ *
+ * Safe to share between search threads, n, the total of the results and
+ * the sum of their squares are each only ever changed atomically, and
+ * Q(s,a) is worked out from them as total / n at full double precision.
+ * Running sums rather than a running mean or Welford's running M2, as sums
+ * add up in any order, so the virtual losses the tree parallel search adds
+ * and replaces cancel out exactly. A reader racing an update may see n and
+ * the total from either side of it, which only skews Q(s,a) by that one
+ * result. The children are only ever published with a compare and set, as
+ * StateNode's are.
  */
 public class ActionNode {
 
-    // the action this ActionNode represents
+    private static final AtomicIntegerFieldUpdater<ActionNode> N =
+            AtomicIntegerFieldUpdater.newUpdater(ActionNode.class, "n");
+    private static final AtomicLongFieldUpdater<ActionNode> TOTAL =
+            AtomicLongFieldUpdater.newUpdater(ActionNode.class, "total");
+    private static final AtomicLongFieldUpdater<ActionNode> SQUARES =
+            AtomicLongFieldUpdater.newUpdater(ActionNode.class, "squares");
+    private static final AtomicReferenceFieldUpdater<ActionNode, Outcomes>
+            OUTCOMES = AtomicReferenceFieldUpdater.newUpdater(ActionNode.class,
+            Outcomes.class, "outcomes");
+
+    // the action this ActionNode represents and its ActionCatalog id
     public Action action;
+    public final int id;
 
     // the state this action was executed from
     public StateNode parent;
 
-    // the states achieved from taking this action
-    public HashSet<StateNode> children;
+    // the states achieved from taking this action, one per (state, step)
+    // keyed by StateCodec.nodeKey. An action has a handful of outcomes at
+    // most (a move distance each, slip and breakdown) so they are searched
+    // in order, and replaced whole when one is added or removed
+    private volatile Outcomes outcomes;
 
     // number of times action has been taken from it's state
-    public int n;
+    private volatile int n;
 
-    // Q(s, a) where s = this.parent.state, a = this.a
-    public double averageExpectedValue;
+    // sum of the results behind Q(s, a) as double bits
+    // where s = this.parent.state, a = this.a
+    private volatile long total;
 
-    public ActionNode(Action a){
+    // sum of the squares of the results as double bits, NaN if the stats
+    // were set from somewhere that doesn't keep it
+    private volatile long squares;
+
+    public ActionNode(int id, Action a){
+        this.id = id;
         this.action = a;
         this.parent = null;
-        this.children = new HashSet<StateNode>();
+        this.outcomes = Outcomes.NONE;
         this.n = 0;
-        this.averageExpectedValue = 0.0;
+        this.total = Double.doubleToRawLongBits(0.0);
+        this.squares = Double.doubleToRawLongBits(0.0);
+    }
+
+    // atomically adds x to the double held as bits in field
+    private void add(AtomicLongFieldUpdater<ActionNode> field, double x) {
+        long prev, next;
+        do {
+            prev = field.get(this);
+            next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev)
+                    + x);
+        } while (!field.compareAndSet(this, prev, next));
+    }
+
+    // number of times action has been taken from it's state, including
+    // searches still in progress (virtual losses)
+    public int getN() {
+        return n;
     }
 
+    // Q(s, a) where s = this.parent.state, a = this.a
+    public double getAverageExpectedValue() {
+        int visits = n;
+        return visits == 0 ? 0.0 : Double.longBitsToDouble(total) / visits;
+    }
+
+    /**
+     * Sample variance of the results behind Q(s, a), NaN if it isn't known
+     * or there are fewer than 2 of them
+     */
+    public double getVariance() {
+        int visits = n;
+        if (visits < 2) {
+            return Double.NaN;
+        }
+        double sum = Double.longBitsToDouble(total);
+        double sumSquares = Double.longBitsToDouble(squares);
+        return Math.max(0.0, (sumSquares - sum * sum / visits) / (visits - 1));
+    }
+
+    // sum of the squared results, NaN if it isn't known
+    public double getSumSquares() {
+        return Double.longBitsToDouble(squares);
+    }
+
+    // overwrites n and Q(s, a), for merging statistics from other trees,
+    // the variance is unknown afterwards
+    public void setStats(int n, double q) {
+        setStats(n, q, Double.NaN);
+    }
+
+    // overwrites n, Q(s, a) and the sum of squared results
+    public void setStats(int n, double q, double sumSquares) {
+        this.n = n;
+        total = Double.doubleToRawLongBits(q * n);
+        squares = Double.doubleToRawLongBits(sumSquares);
+    }
+
+    /**
+     * The StateNodes reached from this action so far, the array is shared so
+     * must not be changed
+     */
+    public StateNode[] getChildren() {
+        return outcomes.nodes;
+    }
+
+    public int getChildCount() {
+        return outcomes.nodes.length;
+    }
+
+    // adds node unless there is already a child for its (state, step)
     public void addChild(StateNode node) {
-        node.parent = this;
-        children.add(node);
+        if (putIfAbsent(StateCodec.nodeKey(node.state, node.step), node)
+                == node) {
+            node.parent = this;
+        }
+    }
+
+    // the child for reaching state at step, created if there isn't one yet
+    public StateNode getOrAddChild(Model model, long state, int step) {
+        long key = StateCodec.nodeKey(state, step);
+        Outcomes o = outcomes;
+        int i = o.indexOf(key);
+        if (i >= 0) {
+            return o.nodes[i];
+        }
+        StateNode created = new StateNode(model, state, step);
+        created.parent = this;
+        return putIfAbsent(key, created);
+    }
+
+    // the child for key, node if there wasn't one and node was added
+    private StateNode putIfAbsent(long key, StateNode node) {
+        while (true) {
+            Outcomes o = outcomes;
+            int i = o.indexOf(key);
+            if (i >= 0) {
+                return o.nodes[i];
+            }
+            // if another thread changed them first go again on theirs
+            if (OUTCOMES.compareAndSet(this, o, o.with(key, node))) {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Removes node if it is still the child for its (state, step)
+     *
+     * @return true if this call removed it
+     */
+    public boolean removeChild(StateNode node) {
+        long key = StateCodec.nodeKey(node.state, node.step);
+        while (true) {
+            Outcomes o = outcomes;
+            int i = o.indexOf(key);
+            if (i < 0 || o.nodes[i] != node) {
+                return false;
+            }
+            if (OUTCOMES.compareAndSet(this, o, o.without(i))) {
+                return true;
+            }
+        }
     }
 
     public void update(double q) {
-        // Q(s,a) = (Q(s,a) * n + q) / n + 1
-        // n + 1
-        averageExpectedValue = (averageExpectedValue * n + q) / (n + 1);
-        n++;
+        // Q(s,a) = (total + q) / n + 1
+        N.incrementAndGet(this);
+        add(TOTAL, q);
+        add(SQUARES, q * q);
+    }
+
+    /**
+     * Counts a search that is still running through this action as a visit
+     * that returned 0, so other threads are steered to other actions until
+     * it finishes with completeVirtualLoss().
+     */
+    public void addVirtualLoss() {
+        update(0.0);
+    }
+
+    /**
+     * Replaces the 0 counted by addVirtualLoss() with the real result q, the
+     * visit has already been counted so n stays the same.
+     */
+    public void completeVirtualLoss(double q) {
+        add(TOTAL, q);
+        add(SQUARES, q * q);
     }
 
     // returns null if doesn't exist
-    public StateNode getStateNode(State state) {
-        for (StateNode s : children) {
-            if (s.state.equals(state)) {
-                return s;
+    public StateNode getStateNode(long state, int step) {
+        Outcomes o = outcomes;
+        int i = o.indexOf(StateCodec.nodeKey(state, step));
+        return i < 0 ? null : o.nodes[i];
+    }
+
+    // the children's keys and nodes at the same index, never changed once
+    // published
+    private static final class Outcomes {
+
+        static final Outcomes NONE = new Outcomes(new long[0],
+                new StateNode[0]);
+
+        final long[] keys;
+        final StateNode[] nodes;
+
+        Outcomes(long[] keys, StateNode[] nodes) {
+            this.keys = keys;
+            this.nodes = nodes;
+        }
+
+        // index of key, -1 if it isn't here
+        int indexOf(long key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return i;
+                }
             }
+            return -1;
+        }
+
+        // these with key and node added at the end
+        Outcomes with(long key, StateNode node) {
+            long[] k = Arrays.copyOf(keys, keys.length + 1);
+            StateNode[] n = Arrays.copyOf(nodes, nodes.length + 1);
+            k[keys.length] = key;
+            n[nodes.length] = node;
+            return new Outcomes(k, n);
         }
-        return null;
-    }
 
+        // these without the child at index i
+        Outcomes without(int i) {
+            long[] k = new long[keys.length - 1];
+            StateNode[] n = new StateNode[nodes.length - 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(keys, i + 1, k, i, k.length - i);
+            System.arraycopy(nodes, 0, n, 0, i);
+            System.arraycopy(nodes, i + 1, n, i, n.length - i);
+            return new Outcomes(k, n);
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package A2Code;
+
+import problem.ProblemSpec;
+
+import java.util.SplittableRandom;
+
+/**
+ * Lockstep rollout engine that plays out a batch of independent rollouts of
+ * the MOVE-only default policy (just keep moving) from the same state. It
+ * can't follow RolloutPolicy, whose changes of setup would split the lanes'
+ * shared config.
+ *
+ * The rollout states are held as parallel primitive arrays (position, fuel,
+ * steps) and advanced together one step at a time using the compiled move
+ * tables and fuel usage of the TransitionKernel, so a whole batch allocates
+ * nothing. The car, driver, tire and pressure can't change while moving so
+ * every lane shares one config.
+ *
+ * Not thread safe, each thread needs its own engine.
+ */
+public class BatchRollout {
+
+    // lockstep steps between checks of the deadline, a power of two
+    private static final int DEADLINE_CHECK = 8;
+
+    private final Model model;
+    private final TransitionKernel kernel;
+    private final SplittableRandom rng;
+
+    private final int goal;
+    private final int maxT;
+    private final int slipRecoveryTime;
+    private final int repairTime;
+    private final boolean usesFuel;
+
+    // state of each lane
+    private final int[] pos;
+    private final int[] fuel;
+    private final int[] steps;
+
+    // sum of rewards seen by each lane, returned from run()
+    private final double[] returns;
+
+    /**
+     * @param model the Model of the problem spec
+     * @param lanes number of rollouts in a batch
+     * @param rng random number generator for sampling moves
+     */
+    public BatchRollout(Model model, int lanes, SplittableRandom rng) {
+        ProblemSpec ps = model.getSpec();
+        this.model = model;
+        this.kernel = model.getKernel();
+        this.rng = rng;
+        this.goal = ps.getN();
+        this.maxT = ps.getMaxT();
+        this.slipRecoveryTime = ps.getSlipRecoveryTime();
+        this.repairTime = ps.getRepairTime();
+        this.usesFuel = ps.getLevel().getLevelNumber() > 1;
+        this.pos = new int[lanes];
+        this.fuel = new int[lanes];
+        this.steps = new int[lanes];
+        this.returns = new double[lanes];
+    }
+
+    /**
+     * Number of rollouts in a batch
+     */
+    public int getLanes() {
+        return returns.length;
+    }
+
+    /**
+     * Roll out every lane from the given state for up to depth moves, or
+     * until it reaches the goal or runs out of time.
+     *
+     * Each lane's result is the sum of Model.reward over the states it
+     * visited, including the start state, which is the same value the tree
+     * rollout in MCTS backs up for a MOVE-only chain.
+     *
+     * @param start the packed state to roll out from
+     * @param startSteps steps taken to reach start
+     * @param depth maximum number of moves per lane
+     * @return the result of each lane, reused by the next call
+     */
+    public double[] run(long start, int startSteps, int depth) {
+        return run(start, startSteps, depth, false, 0);
+    }
+
+    /**
+     * run(), stopping every lane where it is at a deadline, as it would at
+     * its depth. The deadline is checked every DEADLINE_CHECK steps
+     *
+     * @param deadline System.nanoTime() to stop by
+     */
+    public double[] run(long start, int startSteps, int depth, long deadline) {
+        return run(start, startSteps, depth, true, deadline);
+    }
+
+    private double[] run(long start, int startSteps, int depth,
+                         boolean timed, long deadline) {
+        int lanes = returns.length;
+        int startPos = StateCodec.pos(start);
+        int rest = kernel.configRest(start);
+        double startReward = model.reward(startPos, startSteps);
+        for (int i = 0; i < lanes; i++) {
+            pos[i] = startPos;
+            fuel[i] = StateCodec.fuel(start);
+            steps[i] = startSteps;
+            returns[i] = startReward;
+        }
+
+        int live = isTerminal(startPos, startSteps) ? 0 : lanes;
+        for (int d = 0; d < depth && live > 0; d++) {
+            if (timed && (d & (DEADLINE_CHECK - 1)) == DEADLINE_CHECK - 1
+                    && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            live = 0;
+            for (int i = 0; i < lanes; i++) {
+                if (isTerminal(pos[i], steps[i])) {
+                    continue;
+                }
+                int config = kernel.configAt(pos[i], rest);
+                int fuelRequired = kernel.getFuelConsumption(config);
+
+                // not enough fuel, a step passes without moving
+                if (fuelRequired <= fuel[i]) {
+                    int move = kernel.sampleMove(config, rng.nextDouble());
+                    if (move == ProblemSpec.SLIP) {
+                        steps[i] += slipRecoveryTime - 1;
+                    } else if (move == ProblemSpec.BREAKDOWN) {
+                        steps[i] += repairTime - 1;
+                    } else {
+                        pos[i] = Math.min(Math.max(pos[i] + move, 1), goal);
+                    }
+                    if (usesFuel) {
+                        fuel[i] -= fuelRequired;
+                    }
+                }
+                steps[i] += 1;
+
+                returns[i] += model.reward(pos[i], steps[i]);
+                if (!isTerminal(pos[i], steps[i])) {
+                    live++;
+                }
+            }
+        }
+        return returns;
+    }
+
+    private boolean isTerminal(int pos, int steps) {
+        return steps >= maxT || pos == goal;
+    }
+}
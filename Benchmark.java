@@ -0,0 +1,247 @@
+package A2Code;
+
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+
+/**
+ * Quick throughput comparisons for the search hot paths, run with
+ * Main <input> <output> --bench. Each case is warmed up before it is timed.
+ */
+public class Benchmark {
+
+    // moves per benchmark rollout, long enough for most tracks to finish
+    private static final int DEPTH = 50;
+
+    // rollouts per batch for the lockstep engine
+    private static final int LANES = 64;
+
+    private static final long WARMUP_MS = 1000;
+    private static final long RUN_MS = 2000;
+
+    // results are added here so the JIT can't throw the work away
+    private static volatile double sink;
+
+    /**
+     * Rollouts per second of the default policy from the start state, scalar
+     * Symulator.stepPacked against the BatchRollout engine.
+     */
+    public static void rollouts(Model model, SplittableRandom rng) {
+        ProblemSpec ps = model.getSpec();
+        long start = model.getCodec().encode(State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+        Symulator simon = new Symulator(model, rng.split());
+
+        scalarRollouts(model, simon, start, WARMUP_MS);
+        double scalar = scalarRollouts(model, simon, start, RUN_MS);
+        batchRollouts(simon, start, WARMUP_MS);
+        double batch = batchRollouts(simon, start, RUN_MS);
+
+        System.out.println("Rollouts of depth " + DEPTH + " from the start state:");
+        System.out.println(String.format("Symulator.stepPacked	= %.0f rollouts/s", scalar));
+        System.out.println(String.format("BatchRollout (%d lanes)	= %.0f rollouts/s (%.2fx)",
+                LANES, batch, batch / scalar));
+    }
+
+    private static double scalarRollouts(Model model, Symulator simon,
+                                         long start, long duration) {
+        ProblemSpec ps = model.getSpec();
+        Action move = new Action(ActionType.MOVE);
+        long rollouts = 0;
+        double total = 0.0;
+        long startTime = System.currentTimeMillis();
+        long elapsed;
+        while ((elapsed = System.currentTimeMillis() - startTime) < duration) {
+            long state = simon.resetPacked(start, 0);
+            total += model.reward(state, 0);
+            for (int d = 0; d < DEPTH && simon.getSteps() < ps.getMaxT()
+                    && StateCodec.pos(state) != ps.getN(); d++) {
+                state = simon.stepPacked(move);
+                total += model.reward(state, simon.getSteps());
+            }
+            rollouts++;
+        }
+        sink += total;
+        return rollouts * 1000.0 / elapsed;
+    }
+
+    private static double batchRollouts(Symulator simon, long start,
+                                        long duration) {
+        long rollouts = 0;
+        double total = 0.0;
+        long startTime = System.currentTimeMillis();
+        long elapsed;
+        while ((elapsed = System.currentTimeMillis() - startTime) < duration) {
+            simon.resetPacked(start, 0);
+            double[] results = simon.rolloutBatch(LANES, DEPTH);
+            total += results[0];
+            rollouts += LANES;
+        }
+        sink += total;
+        return rollouts * 1000.0 / elapsed;
+    }
+
+    /**
+     * One search from the start state on the StateNode/ActionNode object tree
+     * against the same search on a HeapNodeStore and an OffHeapNodeStore.
+     * Memory is the growth of the heap over the search, measured after a
+     * System.gc() either side so treat it as an estimate, plus the memory
+     * reserved off the heap. GC is the collector time spent during the
+     * search.
+     */
+    public static void treeStores(Model model, SplittableRandom rng) {
+        ProblemSpec ps = model.getSpec();
+        long start = model.getCodec().encode(State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+
+        // warm up both, then time them
+        objectTree(model, rng, start, WARMUP_MS);
+        pooledTree(model, rng, start, WARMUP_MS, new HeapNodeStore(1 << 16));
+        pooledTree(model, rng, start, WARMUP_MS, new OffHeapNodeStore());
+        System.out.println("Search trees from the start state:");
+        objectTree(model, rng, start, RUN_MS);
+        pooledTree(model, rng, start, RUN_MS, new HeapNodeStore(1 << 16));
+        pooledTree(model, rng, start, RUN_MS, new OffHeapNodeStore());
+    }
+
+    private static void objectTree(Model model, SplittableRandom rng,
+                                   long start, long duration) {
+        long before = usedHeap();
+        StateNode root = new StateNode(model, start, 0);
+        MCTS mcts = new MCTS(root, model, rng.split());
+        long gcBefore = gcMillis();
+        long startTime = System.currentTimeMillis();
+        mcts.simulate(duration);
+        long elapsed = System.currentTimeMillis() - startTime;
+        long gc = gcMillis() - gcBefore;
+        long bytes = usedHeap() - before;
+        long nodes = MCTS.countNodes(root);
+        if (duration == RUN_MS) {
+            printTree("StateNode/ActionNode", mcts.iterations, elapsed, nodes,
+                    bytes, gc);
+        }
+        sink += root.averageExpectedValue;
+    }
+
+    private static void pooledTree(Model model, SplittableRandom rng,
+                                   long start, long duration, NodeStore store) {
+        long before = usedHeap();
+        StateNode root = new StateNode(model, start, 0);
+        MCTS mcts = new MCTS(root, model, rng.split());
+        mcts.setNodeStore(store);
+        long gcBefore = gcMillis();
+        long startTime = System.currentTimeMillis();
+        mcts.simulate(duration);
+        long elapsed = System.currentTimeMillis() - startTime;
+        long gc = gcMillis() - gcBefore;
+        long bytes = usedHeap() - before;
+        if (store instanceof OffHeapNodeStore) {
+            bytes += store.reservedBytes();
+        }
+        if (duration == RUN_MS) {
+            printTree(store.getClass().getSimpleName(), mcts.iterations,
+                    elapsed, store.size(), bytes, gc);
+        }
+        sink += root.averageExpectedValue;
+        mcts.shutdown();
+    }
+
+    private static void printTree(String name, long iterations, long elapsed,
+                                  long nodes, long bytes, long gc) {
+        double bytesPerNode = nodes == 0 ? 0.0 : (double) bytes / nodes;
+        System.out.println(String.format("%s	= %.0f iterations/s, %d nodes, "
+                        + "%.1f bytes/node, %.1fM nodes/GB, %d ms GC", name,
+                iterations * 1000.0 / elapsed, nodes, bytesPerNode,
+                bytesPerNode == 0.0 ? 0.0 : (1L << 30) / bytesPerNode / 1e6,
+                gc));
+    }
+
+    /**
+     * One search from the start state with each way of valuing a leaf,
+     * comparing iterations/s, heap bytes allocated per iteration and the
+     * size of the tree left behind. The uniform policy only sweeps the root,
+     * so there the evaluator is nearly all the work. PUCT expands a new leaf
+     * every iteration whatever the evaluator.
+     */
+    public static void evaluators(Model model, SplittableRandom rng) {
+        ProblemSpec ps = model.getSpec();
+        long start = model.getCodec().encode(State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+
+        for (TreePolicy policy : new TreePolicy[] {TreePolicy.uniform(),
+                TreePolicy.puct(0.2)}) {
+            System.out.println("Leaf evaluators from the start state, "
+                    + policy + " policy:");
+            evaluator(model, rng, start, policy, MCTS.Evaluator.TREE, 0, "TREE");
+            evaluator(model, rng, start, policy, MCTS.Evaluator.BATCH, 0,
+                    "BATCH (1 lane)");
+            evaluator(model, rng, start, policy, MCTS.Evaluator.SCRATCH, 0,
+                    "SCRATCH");
+            evaluator(model, rng, start, policy, MCTS.Evaluator.SCRATCH,
+                    ps.getMaxT(), "SCRATCH (to the end)");
+        }
+    }
+
+    private static void evaluator(Model model, SplittableRandom rng,
+                                  long start, TreePolicy policy,
+                                  MCTS.Evaluator evaluator, int depth,
+                                  String name) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation counting isn't supported by this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation =
+                (com.sun.management.ThreadMXBean) threads;
+
+        double iterationsPerSecond = 0;
+        double bytesPerIteration = 0;
+        long nodes = 0;
+        for (long duration : new long[] {WARMUP_MS, RUN_MS}) {
+            StateNode root = new StateNode(model, start, 0);
+            MCTS mcts = new MCTS(root, model, rng.split());
+            mcts.setTreePolicy(policy);
+            mcts.setEvaluator(evaluator);
+            if (depth > 0) {
+                mcts.setRolloutDepth(depth);
+            }
+            long before = allocation.getCurrentThreadAllocatedBytes();
+            long startTime = System.currentTimeMillis();
+            mcts.simulate(duration);
+            long elapsed = System.currentTimeMillis() - startTime;
+            long bytes = allocation.getCurrentThreadAllocatedBytes() - before;
+
+            iterationsPerSecond = mcts.iterations * 1000.0 / elapsed;
+            bytesPerIteration = (double) bytes / Math.max(1, mcts.iterations);
+            nodes = MCTS.countNodes(root);
+            sink += root.averageExpectedValue;
+        }
+        System.out.println(String.format("%s	= %.0f iterations/s, %.1f bytes "
+                        + "allocated/iteration, %d nodes", name,
+                iterationsPerSecond, bytesPerIteration, nodes));
+    }
+
+    // total time spent in garbage collection so far
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
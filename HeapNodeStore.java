@@ -0,0 +1,185 @@
+package A2Code;
+
+import java.util.Arrays;
+
+/**
+ * NodeStore backed by growable primitive arrays on the Java heap. A node
+ * costs 48 bytes with no object headers or boxing, and a whole tree is a
+ * handful of arrays for the garbage collector to look at.
+ */
+public class HeapNodeStore implements NodeStore {
+
+    private static final int BYTES_PER_NODE = 8 + 8 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    private long[] key;
+    private double[] value;
+    private int[] visits;
+    private double[] reward;
+    private double[] squares;
+    private int[] step;
+    private int[] firstChild;
+    private int[] nextSibling;
+
+    private int size;
+
+    /**
+     * @param capacity number of nodes to make room for up front
+     */
+    public HeapNodeStore(int capacity) {
+        capacity = Math.max(capacity, 16);
+        key = new long[capacity];
+        value = new double[capacity];
+        visits = new int[capacity];
+        reward = new double[capacity];
+        squares = new double[capacity];
+        step = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        size = 0;
+    }
+
+    @Override
+    public int allocate() {
+        if (size == key.length) {
+            grow();
+        }
+        int id = size++;
+        key[id] = 0;
+        value[id] = 0.0;
+        visits[id] = 0;
+        reward[id] = 0.0;
+        squares[id] = 0.0;
+        step[id] = 0;
+        firstChild[id] = NONE;
+        nextSibling[id] = NONE;
+        return id;
+    }
+
+    private void grow() {
+        int capacity = key.length * 2;
+        key = Arrays.copyOf(key, capacity);
+        value = Arrays.copyOf(value, capacity);
+        visits = Arrays.copyOf(visits, capacity);
+        reward = Arrays.copyOf(reward, capacity);
+        squares = Arrays.copyOf(squares, capacity);
+        step = Arrays.copyOf(step, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public int compact(int root) {
+        HeapNodeStore kept = new HeapNodeStore(key.length);
+        int id = NodeStore.copySubtree(this, kept, root);
+        key = kept.key;
+        value = kept.value;
+        visits = kept.visits;
+        reward = kept.reward;
+        squares = kept.squares;
+        step = kept.step;
+        firstChild = kept.firstChild;
+        nextSibling = kept.nextSibling;
+        size = kept.size;
+        return id;
+    }
+
+    @Override
+    public int bytesPerNode() {
+        return BYTES_PER_NODE;
+    }
+
+    @Override
+    public long reservedBytes() {
+        return (long) key.length * BYTES_PER_NODE;
+    }
+
+    @Override
+    public long key(int id) {
+        return key[id];
+    }
+
+    @Override
+    public void setKey(int id, long key) {
+        this.key[id] = key;
+    }
+
+    @Override
+    public double value(int id) {
+        return value[id];
+    }
+
+    @Override
+    public void setValue(int id, double value) {
+        this.value[id] = value;
+    }
+
+    @Override
+    public int visits(int id) {
+        return visits[id];
+    }
+
+    @Override
+    public void setVisits(int id, int visits) {
+        this.visits[id] = visits;
+    }
+
+    @Override
+    public double reward(int id) {
+        return reward[id];
+    }
+
+    @Override
+    public void setReward(int id, double reward) {
+        this.reward[id] = reward;
+    }
+
+    @Override
+    public double squares(int id) {
+        return squares[id];
+    }
+
+    @Override
+    public void setSquares(int id, double squares) {
+        this.squares[id] = squares;
+    }
+
+    @Override
+    public int step(int id) {
+        return step[id];
+    }
+
+    @Override
+    public void setStep(int id, int step) {
+        this.step[id] = step;
+    }
+
+    @Override
+    public int firstChild(int id) {
+        return firstChild[id];
+    }
+
+    @Override
+    public void setFirstChild(int id, int child) {
+        firstChild[id] = child;
+    }
+
+    @Override
+    public int nextSibling(int id) {
+        return nextSibling[id];
+    }
+
+    @Override
+    public void setNextSibling(int id, int sibling) {
+        nextSibling[id] = sibling;
+    }
+}
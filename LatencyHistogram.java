@@ -0,0 +1,107 @@
+package A2Code;
+
+/**
+ * Counts of recorded latencies in log-linear buckets, in the style of an HDR
+ * histogram: values below SUB_BUCKETS nanoseconds get a bucket each, and
+ * every power of two above that is split into SUB_BUCKETS / 2 equal buckets,
+ * so any percentile is within 1 / 256 of the value really recorded whatever
+ * its size. Recording is a couple of shifts and an array increment.
+ *
+ * Not thread safe, each MCTS records its decisions on the thread deciding.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 9;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    // enough buckets for any non negative long
+    private static final int BUCKETS = SUB_BUCKETS
+            + (Long.SIZE - SUB_BITS) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Record a latency, negative ones are counted as 0
+     *
+     * @param nanos the latency, in ns
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    // bucket a value is counted in
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value))
+                - (SUB_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF
+                + (int) ((value >>> shift) - HALF);
+    }
+
+    // largest value counted in a bucket
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long sub = (bucket - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Number of latencies recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Largest latency recorded, exactly, in ns
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * The latency at a percentile, in ns: no more than 1 / 256 over the
+     * smallest recorded latency that percent of all of them are at or below
+     *
+     * @param percent from 0 to 100
+     * @return the latency, 0 if nothing has been recorded
+     */
+    public long percentile(double percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Percentile out of range: "
+                    + percent);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(highest(b), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * p50, p99 and max in ms, for reports
+     */
+    @Override
+    public String toString() {
+        return String.format("p50 %.2fms, p99 %.2fms, max %.2fms",
+                percentile(50) / 1e6, percentile(99) / 1e6, max / 1e6);
+    }
+}
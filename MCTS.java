@@ -1,16 +1,56 @@
 package A2Code;
 
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import problem.Action;
-import problem.ActionType;
 import problem.ProblemSpec;
-import simulator.State;
 
 
 public class MCTS {
 
+    // how a new leaf is valued
+    public enum Evaluator {
+        // rollouts that add their nodes to the tree
+        TREE,
+        // a batch of lockstep rollouts that build no nodes, see BatchRollout,
+        // they always just move, Model.informedRollouts is ignored
+        BATCH,
+        // rollouts on the Symulator's packed state that build no nodes and
+        // allocate nothing, the leaf only gets their summed reward
+        SCRATCH
+    }
+
+    // how the workers share the search when there is more than one
+    public enum Parallelism {
+        // every worker builds its own tree, merged at the root afterwards
+        ROOT,
+        // every worker searches the one shared tree
+        TREE
+    }
+
     private ProblemSpec ps;
 
+    // rewards, default policy and tables for ps
+    private Model model;
+
+    // for printing packed states
+    private StateCodec codec;
+
+    // the actions of ps by id
+    private ActionCatalog catalog;
+
     // a pointer to the current node we are simulating from
     private StateNode current;
 
@@ -18,72 +58,598 @@ public class MCTS {
 
     private static int DEPTH = 2;
 
+    // rough heap cost of one tree node including its maps, as measured by
+    // Main --bench, for turning a memory budget into a node budget
+    public static final int NODE_BYTES = 210;
+
+    // fraction of the node budget a prune cuts the tree down to, so pruning
+    // doesn't have to happen again straight away
+    private static final double PRUNE_TO = 0.5;
+
+    // pieces a decision that can stop early is searched in, separated() is
+    // checked after each
+    private static final int SLICES = 4;
+
+    // how many standard errors wide the confidence bounds of separated() are
+    private static final double SEPARATED_Z = 3.0;
+
+    // results an action needs before its variance is trusted
+    private static final int MIN_SAMPLES = 30;
+
+    // whether simulate(long) stops once the best action is separated()
+    private boolean earlyStop;
+
+    // rollout moves between checks of the deadline, a power of two
+    private static final int DEADLINE_CHECK = 8;
+
+    // System.nanoTime() the search in progress has to stop by, set before
+    // any worker starts so they all see it. Ignored with a sweep limit
+    private long deadline;
+
     private Action prevAction;
 
     public long maxMemUsed;
 
+    // all randomness in the search is split off this generator
+    private SplittableRandom rng;
+
+    // if > 0, simulate() runs exactly this many sweeps over the root actions
+    // instead of running until the time constraint, so seeded runs replay
+    private int sweepLimit;
+
+    // number of threads each searching their own tree from this.current
+    private int workers;
+
+    // how the workers share the search
+    private Parallelism parallelism;
 
-    public MCTS(StateNode root, ProblemSpec ps) {
-        this.ps = ps;
+    // threads for parallel search, null when workers == 1
+    private ExecutorService pool;
+
+    // number of rollouts run in parallel from every new leaf, 1 is a single
+    // rollout on the searching thread
+    private int leafBatch;
+
+    // how new leaves are valued
+    private Evaluator evaluator;
+
+    // moves per rollout for the BATCH and SCRATCH evaluators, TREE rollouts
+    // add a node per move so always stop at DEPTH
+    private int rolloutDepth;
+
+    // shares StateNodes between every path to the same (state, step), null
+    // if disabled
+    private TranspositionTable table;
+
+    // runs the search on a NodeStore instead of the object tree, null to use
+    // the object tree
+    private PooledSearch pooled;
+
+    // which action to search next, uniform sweeps the root actions
+    private TreePolicy policy;
+
+    // progressive widening, a StateNode with N visits considers its first
+    // ceil(k * N^alpha) actions and an ActionNode taken n times has at most
+    // ceil(k * n^alpha) outcomes. k <= 0 turns it off
+    private double actionK, actionAlpha;
+    private double outcomeK, outcomeAlpha;
+
+    // most tree nodes (StateNodes and ActionNodes) to keep, 0 for no limit
+    private long nodeBudget;
+
+    // tree nodes under this.current, kept up to date as nodes are added and
+    // recounted exactly after pruning
+    private final LongAdder nodeCount = new LongAdder();
+
+    // ticks once per simulation, nodes are stamped with it as searches pass
+    // through them. Updated without synchronisation, it is only a hint
+    private volatile long clock;
+
+    // number of times the tree has been pruned to fit the node budget
+    public long prunes;
+
+    // simulations run and decisions made over the life of this MCTS
+    public long iterations;
+    public long decisions;
+
+    // decisions stopped before their budget ran out, and the time that
+    // saved in ms
+    public long stoppedEarly;
+    public long savedMillis;
+
+    // how long each decision took from simulate() being called to it
+    // returning, and how far over its budget that was, in ns. Decisions
+    // under a sweep limit have no budget so only count towards latency
+    public final LatencyHistogram latency = new LatencyHistogram();
+    public final LatencyHistogram overrun = new LatencyHistogram();
+
+    // tree nodes and root visits carried over by advance() over the life of
+    // this MCTS
+    public long reusedNodes;
+    public long reusedVisits;
+
+
+    public MCTS(StateNode root, Model model) {
+        this(root, model, new SplittableRandom());
+    }
+
+    // a search that draws all of its randomness from rng, pass a seeded
+    // generator to make simulate() reproducible
+    public MCTS(StateNode root, Model model, SplittableRandom rng) {
+        this.model = model;
+        this.ps = model == null ? null : model.getSpec();
+        this.codec = model == null ? null : model.getCodec();
+        this.catalog = model == null ? null : model.getCatalog();
         this.current = root;
         this.prevAction = null;
+        this.rng = rng;
+        this.sweepLimit = 0;
+        this.workers = 1;
+        this.parallelism = Parallelism.ROOT;
+        this.pool = null;
+        this.leafBatch = 1;
+        this.evaluator = Evaluator.TREE;
+        this.rolloutDepth = DEPTH;
+        this.table = null;
+        this.pooled = null;
+        this.policy = TreePolicy.uniform();
+        this.actionK = 0;
+        this.actionAlpha = 0;
+        this.outcomeK = 0;
+        this.outcomeAlpha = 0;
+        this.nodeBudget = 0;
+        this.earlyStop = false;
+        this.clock = 1;
+        this.prunes = 0;
+        if (root != null) {
+            nodeCount.add(countNodes(root));
+        }
+        this.iterations = 0;
+        this.decisions = 0;
+        this.stoppedEarly = 0;
+        this.savedMillis = 0;
+        this.reusedNodes = 0;
+        this.reusedVisits = 0;
         this.maxMemUsed = Runtime.getRuntime().totalMemory()
                 - Runtime.getRuntime().freeMemory();
     }
 
+    // run a fixed number of sweeps per simulate() call rather than a time
+    // budget, 0 goes back to the time budget
+    public void setSweepLimit(int sweeps) {
+        this.sweepLimit = sweeps;
+    }
+
+    // search from this many independent copies of the root at once, one
+    // thread each, merging the root action statistics at the deadline
+    public void setWorkers(int workers) {
+        stopWorkers();
+        this.workers = Math.max(1, workers);
+        if (this.workers > 1) {
+            this.pool = Executors.newFixedThreadPool(this.workers, r -> {
+                Thread t = new Thread(r, "mcts-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // stop each simulate(long) once the best root action is separated()
+    // rather than always using the whole time constraint, simulate() with a
+    // TimeManager always does
+    public void setEarlyStop(boolean earlyStop) {
+        this.earlyStop = earlyStop;
+    }
+
+    // whether multiple workers search separate trees or one shared tree
+    public void setParallelism(Parallelism parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    // run this many rollouts at once from every new leaf on the common
+    // ForkJoinPool, averaging them before backing up
+    public void setLeafBatch(int leafBatch) {
+        this.leafBatch = Math.max(1, leafBatch);
+    }
+
+    // how new leaves are valued, with BATCH the leaf batch size is the number
+    // of lockstep lanes
+    public void setEvaluator(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    // moves per rollout for the BATCH and SCRATCH evaluators, 0 plays on
+    // until the race is over
+    public void setRolloutDepth(int depth) {
+        this.rolloutDepth = depth > 0 ? depth : Integer.MAX_VALUE;
+    }
+
+    // share StateNodes between every path that reaches the same state at the
+    // same step, the table starts with the given number of slots
+    public void setTransposition(int capacity) {
+        this.table = capacity > 0 ? new TranspositionTable(model, capacity) : null;
+        if (table != null && current != null) {
+            table.rebuild(current);
+        }
+    }
+
+    // the transposition table, null if disabled
+    public TranspositionTable getTranspositionTable() {
+        return table;
+    }
+
+    // how to pick actions. The uniform policy sweeps over every root action in
+    // turn and rolls each out, any other policy picks actions all the way
+    // down the tree until it reaches a node it hasn't expanded yet
+    public void setTreePolicy(TreePolicy policy) {
+        this.policy = policy;
+    }
+
+    // widen the actions a StateNode considers as it is visited, a node visited
+    // N times considers its first ceil(k * N^alpha) actions (MOVE first).
+    // Only applies to policies that descend the tree, the uniform sweep
+    // always tries every root action. k <= 0 considers every action
+    public void setActionWidening(double k, double alpha) {
+        this.actionK = k;
+        this.actionAlpha = alpha;
+    }
+
+    // limit the outcomes kept under an ActionNode taken n times to
+    // ceil(k * n^alpha). Once it has that many, a simulation of the action
+    // goes to one of the existing outcomes instead of sampling a new one.
+    // k <= 0 keeps every outcome
+    public void setOutcomeWidening(double k, double alpha) {
+        this.outcomeK = k;
+        this.outcomeAlpha = alpha;
+    }
+
+    // keep at most this many tree nodes (StateNodes and ActionNodes), 0 for
+    // no limit. When the tree grows past it the least valuable nodes are
+    // pruned, see prune(). A single worker checks between sweeps as well,
+    // every search checks at the end of each simulate()
+    public void setNodeBudget(long nodes) {
+        this.nodeBudget = Math.max(0, nodes);
+    }
+
+    public long getNodeCount() {
+        return nodeCount.sum();
+    }
+
+    // keep the search tree in the given NodeStore rather than as StateNode
+    // and ActionNode objects, null goes back to objects. The pooled search is
+    // single threaded, sweeps the root uniformly and always uses tree
+    // rollouts, so the parallel, policy, widening, evaluator, transposition
+    // and node budget settings don't apply to it. Stopping early does, the
+    // root's statistics are copied back with their sums of squares
+    public void setNodeStore(NodeStore store) {
+        this.pooled = store == null ? null : new PooledSearch(model, store, DEPTH);
+    }
+
+    // stops the worker threads and frees the node store, call when finished
+    // with this MCTS
+    public void shutdown() {
+        stopWorkers();
+        if (pooled != null) {
+            pooled.getStore().close();
+            pooled = null;
+        }
+    }
+
+    private void stopWorkers() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
     // resets the search tree for a new rollout from the given StateNode
     // do this with the the root node you want before every simulate() call
     // StateNode parameter doesn't need to be connected to the tree but waste
     // of time if it's not
     public void movePointer(StateNode node) {
         this.current = node;
+        if (table != null) {
+            // forget everything we can't reach from here any more
+            table.rebuild(node);
+        }
+        nodeCount.reset();
+        nodeCount.add(countNodes(node));
+    }
+
+    /**
+     * Move the root to the state the real simulator gave us after taking
+     * action from this.current. The subtree already searched under that
+     * state is kept with all of its statistics, and the rest of the tree is
+     * cut loose so it can be freed straight away.
+     *
+     * @param action the action taken in the real simulator
+     * @param state the state observed, packed by StateCodec
+     * @param step the time step it was observed at
+     * @return the new root
+     */
+    public StateNode advance(Action action, long state, int step) {
+        ActionNode a = current.hasActions
+                ? current.getChild(catalog.id(action)) : null;
+        StateNode next = a == null ? null : a.getStateNode(state, step);
+        if (next == null) {
+            next = new StateNode(model, state, step);
+        }
+        next.parent = null;
+        movePointer(next);
+
+        if (pooled != null) {
+            int root = pooled.advance(action, state, step);
+            NodeStore store = pooled.getStore();
+            reusedNodes += store.size();
+            for (int c = store.firstChild(root); c != NodeStore.NONE;
+                 c = store.nextSibling(c)) {
+                reusedVisits += store.visits(c);
+            }
+        } else {
+            reusedNodes += nodeCount.sum();
+            if (next.hasActions) {
+                for (ActionNode child : next.children) {
+                    reusedVisits += child.getN();
+                }
+            }
+        }
+        return next;
+    }
+
+    // number of StateNodes and ActionNodes reachable from root
+    public static long countNodes(StateNode root) {
+        IdentityHashMap<StateNode, Boolean> seen = new IdentityHashMap<>();
+        ArrayDeque<StateNode> todo = new ArrayDeque<>();
+        todo.push(root);
+        seen.put(root, true);
+        long nodes = 0;
+        while (!todo.isEmpty()) {
+            StateNode node = todo.pop();
+            nodes++;
+            if (!node.hasActions) {
+                continue;
+            }
+            for (ActionNode a : node.children) {
+                nodes++;
+                for (StateNode child : a.getChildren()) {
+                    if (seen.put(child, true) == null) {
+                        todo.push(child);
+                    }
+                }
+            }
+        }
+        return nodes;
     }
 
     // conducts W simulations from StateNode being pointed at by this.current
     // return value is action with greatest expected reward after simulations
     public Action simulate(long timeConstraint) {
-        long startTime = System.currentTimeMillis();
-        Symulator simon = new Symulator(ps);
+        long startTime = System.nanoTime();
+        long budget = timeConstraint * 1000000;
+
+        // generate ActionNodes for this.current if they don't exist, all of
+        // them as every root action is searched
+        expandAll(current);
+
+        if (earlyStop && sweepLimit == 0) {
+            searchUntilSeparated(startTime, budget);
+        } else {
+            searchFor(startTime + budget);
+        }
+        return decided(startTime, budget);
+    }
 
-        // generate ActionNodes for this.current if they don't exist
-        if (!current.hasActions) {
-            current.generateActionNodes(Model.getActions(current.state));
+    /**
+     * simulate() for as long as timer gives this decision, stopping early
+     * once the best action is separated(). A sweep limit still decides on
+     * its own.
+     *
+     * @param timer the race's TimeManager
+     * @param steps time steps used so far in the race
+     * @return the best action
+     */
+    public Action simulate(TimeManager timer, int steps) {
+        if (sweepLimit > 0) {
+            return simulate(0);
+        }
+        long startTime = System.nanoTime();
+        expandAll(current);
+        long budget = timer.budget(current, steps) * 1000000;
+        searchUntilSeparated(startTime, budget);
+        return decided(startTime, budget);
+    }
+
+    // searches this.current in SLICES until the budget (in ns) runs out or
+    // the best action is separated(), counting the time that wasn't needed
+    private void searchUntilSeparated(long startTime, long budget) {
+        long end = startTime + budget;
+        long slice = Math.max(1, budget / SLICES);
+        long left = budget;
+        while (left > 0) {
+            searchFor(System.nanoTime() + Math.min(slice, left));
+            left = end - System.nanoTime();
+            if (left > 0 && separated(current, SEPARATED_Z)) {
+                stoppedEarly++;
+                savedMillis += left / 1000000;
+                break;
+            }
+        }
+    }
+
+    // decide() once a search that started at startTime with a budget in ns
+    // is over, recording how long it took
+    private Action decided(long startTime, long budget) {
+        Action res = decide();
+        long took = System.nanoTime() - startTime;
+        latency.record(took);
+        if (sweepLimit == 0) {
+            overrun.record(took - budget);
+        }
+        return res;
+    }
+
+    // whether the search in progress is past its deadline
+    private boolean timeUp() {
+        return sweepLimit == 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Whether the best action of root is statistically separated from the
+     * rest: the lower confidence bound of its Q(s, a) is above the upper
+     * bound of every other action's, with bounds z standard errors wide.
+     * Standard errors come from each action's sample variance. Q(s, a) is a
+     * summed rollout return with no fixed bounds, so there is no worst case
+     * to fall back on: an action whose variance isn't known, or that has
+     * fewer than MIN_SAMPLES results, is never separated.
+     */
+    public static boolean separated(StateNode root, double z) {
+        if (!root.hasActions || root.children.length < 2) {
+            return true;
+        }
+        ActionNode best = root.children[0];
+        for (ActionNode a : root.children) {
+            if (a.getAverageExpectedValue() > best.getAverageExpectedValue()) {
+                best = a;
+            }
+        }
+        if (best.getN() < MIN_SAMPLES) {
+            return false;
+        }
+        double bestError = standardError(best);
+        if (Double.isNaN(bestError)) {
+            return false;
+        }
+        double lower = best.getAverageExpectedValue() - z * bestError;
+        for (ActionNode a : root.children) {
+            if (a == best) {
+                continue;
+            }
+            double error = standardError(a);
+            // NaN compares false, so an unknown variance is caught here too
+            if (a.getN() < MIN_SAMPLES
+                    || !(a.getAverageExpectedValue() + z * error < lower)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // standard error of Q(s, a), NaN if its variance isn't known
+    private static double standardError(ActionNode a) {
+        return Math.sqrt(a.getVariance() / a.getN());
+    }
+
+    // searches this.current with whichever search is set up until the
+    // System.nanoTime() deadline
+    private void searchFor(long deadline) {
+        this.deadline = deadline;
+        if (pooled != null) {
+            iterations += searchPooled();
+        } else if (workers > 1 && parallelism == Parallelism.TREE) {
+            iterations += searchTreeParallel();
+            pruneIfOverBudget();
+        } else if (workers > 1) {
+            iterations += searchRootParallel();
+            // the other workers' trees were counted too
+            nodeCount.reset();
+            nodeCount.add(countNodes(current));
+            pruneIfOverBudget();
+        } else {
+            iterations += search(current, new Symulator(model, rng.split()),
+                    table);
+            // the last sweep may have gone over
+            pruneIfOverBudget();
+        }
+    }
+
+    // picks the action to play once this.current has been searched
+    private Action decide() {
+        decisions++;
+
+        // THEN whichever Q(s,a) is highest in the root node,
+        // give the REAL simulator that action, get our real next state
+        // do the simulations and roll outs all over again
+        // (there is some redundancy here to be worked out)
+
+        if (chatty) {
+            System.out.println("Determining the best action...");
+            System.out.println("Current Node Reward: " + current.reward);
+            System.out.println("Action values for current node: ");
+            if (current.hasActions) {
+                for (ActionNode a : current.children) {
+                    System.out.println("Value for " + a.action.getText() + " is " + a.getAverageExpectedValue());
+                }
+            }
+        }
+        // nothing has been backed up into the root if the budget ran out
+        // before the first iteration, then just move
+        ActionNode best = current.argmaxQ;
+        Action res = best == null ? catalog.action(ActionCatalog.MOVE)
+                : best.action;
+        if (prevAction != null) {
+            if (prevAction.getActionType().equals(res.getActionType())) {
+                res = catalog.action(ActionCatalog.MOVE);
+            }
         }
 
-        while (System.currentTimeMillis() - startTime < timeConstraint) {
+        // memory calculations
+        long tmp = Runtime.getRuntime().totalMemory()
+                        - Runtime.getRuntime().freeMemory();
+        if (tmp > maxMemUsed) maxMemUsed = tmp;
+
+        prevAction = res;
+        return res;
+    }
+
+    // sweeps over every action of root, simulating the next state and then
+    // rolling it out, until the deadline (or sweep limit) is reached. The
+    // deadline is checked before every action, not just every sweep, as a
+    // sweep of a wide root can take longer than a whole decision's budget
+    // returns the number of simulations run
+    private long search(StateNode root, Symulator simon,
+                        TranspositionTable table) {
+        if (!(policy instanceof TreePolicy.Uniform)) {
+            return searchDescending(root, simon, table);
+        }
+        long simulations = 0;
+        int sweeps = 0;
+        while (sweepLimit > 0 ? sweeps < sweepLimit : !timeUp()) {
+            sweeps++;
+            if (workers == 1) {
+                pruneIfOverBudget();
+            }
             // for each action, simulate the next state and then rollout to find
             // it's expected value
-            for (ActionNode a : current.children.values()) {
+            for (ActionNode a : root.children) {
+                if (timeUp()) {
+                    break;
+                }
                 if (chatty)
                     System.out.println("Resetting SYMulator");
 
-                simon.reset(current.state, current.step);
+                simon.resetPacked(root.state, root.step);
+                clock++;
 
                 if (chatty)
                     System.out.println("Symulating the next state after " +
                             "action: " + a.action.getText() + " at: "
-                            + current.state.toString());
-
-                // create the StateNode for the next state
-                State nextState = simon.step(a.action);
+                            + codec.toString(root.state));
 
-                StateNode newState = new StateNode(nextState, simon.getSteps());
+                // get the StateNode for the next state
+                StateNode newState = outcome(a, simon, table);
 
                 if (chatty) {
-                    System.out.println("We got this state: " + nextState.toString());
+                    System.out.println("We got this state: " + codec.toString(newState.state));
                     System.out.println("After " + simon.getSteps() + " steps.." +
                             ".");
                 }
 
                 // Rollout the state, also populates newState's children
-                rollout(newState, simon);
-
-                // Add new StateNode as child to a (it is a child of the action)
-                a.addChild(newState);
+                evaluate(newState, simon, table);
 
                 // Update Q(s,a) of this ActionNode
                 a.update(newState.averageExpectedValue);
-                current.updateQ();
+                root.updateQ();
 
                 if (chatty)
                     System.out.println("Nodes rolled out from simulation added to" +
@@ -92,75 +658,315 @@ public class MCTS {
                 // reverse traverse up the tree filling in Q(s,a) values
                 // fill in avgReward in root node
                 // this is done in rollout
+                simulations++;
             }
         }
+        return simulations;
+    }
 
-        // THEN whichever Q(s,a) is highest in the root node,
-        // give the REAL simulator that action, get our real next state
-        // do the simulations and roll outs all over again
-        // (there is some redundancy here to be worked out)
+    // the search for every policy but uniform: each simulation follows the
+    // policy down from root, simulating each action taken, until it reaches
+    // a state that has not been expanded yet (or a terminal state), rolls
+    // that out and backs up along the way it came. A sweep limit gives the
+    // same number of simulations the uniform sweeps would
+    // returns the number of simulations run
+    private long searchDescending(StateNode root, Symulator simon,
+                                  TranspositionTable table) {
+        long limit = (long) sweepLimit * root.children.length;
+        ArrayList<ActionNode> path = new ArrayList<>();
+        long simulations = 0;
+        while (sweepLimit > 0 ? simulations < limit : !timeUp()) {
+            if (workers == 1 && simulations % root.children.length == 0) {
+                pruneIfOverBudget();
+            }
+            simon.resetPacked(root.state, root.step);
+            clock++;
 
-        if (chatty) {
-            System.out.println("Determining the best action...");
-            System.out.println("Current Node Reward: " + current.reward);
-            System.out.println("Action values for current node: ");
-            for (Map.Entry<String, ActionNode> e : current.children.entrySet()) {
-                System.out.println("Value for " + e.getKey() + " is " + e.getValue().averageExpectedValue);
+            path.clear();
+            StateNode node = root;
+            while (true) {
+                ActionNode a = policy.select(node, widen(node));
+                StateNode next = outcome(a, simon, table);
+                path.add(a);
+                node = next;
+                if (!node.hasActions || isTerminal(node)) {
+                    break;
+                }
+            }
+
+            // rollout the new leaf, also populates its children
+            evaluate(node, simon, table);
+            // the evaluators that build no nodes leave the leaf unexpanded,
+            // expand it so the next simulation through here goes deeper
+            if (!isTerminal(node)) {
+                expand(node);
             }
+
+            double value = node.averageExpectedValue;
+            for (int i = path.size() - 1; i >= 0; i--) {
+                ActionNode a = path.get(i);
+                a.update(value);
+                a.parent.updateQ();
+                value = a.parent.averageExpectedValue;
+            }
+            simulations++;
         }
-        Action res = current.argmaxQ.action;
-        if (prevAction != null) {
-            if (prevAction.getActionType().equals(res.getActionType())) {
-                res = new Action(ActionType.MOVE);
+        return simulations;
+    }
+
+    // runs the search on the NodeStore from this.current, then copies the root
+    // action statistics into this.current so the action is picked the same
+    // way as for the object tree
+    private long searchPooled() {
+        if (!pooled.isRoot(current.state, current.step)) {
+            pooled.reset(current.state, current.step);
+        }
+        long simulations = pooled.search(new Symulator(model, rng.split()),
+                deadline, sweepLimit);
+
+        NodeStore store = pooled.getStore();
+        for (int a = store.firstChild(pooled.getRoot()); a != NodeStore.NONE;
+             a = store.nextSibling(a)) {
+            current.getChild(pooled.actionId(a)).setStats(store.visits(a),
+                    store.value(a), pooled.sumSquares(a));
+        }
+        current.updateQ();
+        return simulations;
+    }
+
+    // runs search() on this.workers threads, each on its own copy of the
+    // root, then merges each root action's n and Q(s,a) into this.current
+    // returns the number of simulations run by all workers
+    private long searchRootParallel() {
+        StateNode[] roots = new StateNode[workers];
+        List<Callable<Long>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            // worker 0 searches the real tree so its subtrees can be reused
+            if (w == 0) {
+                roots[w] = current;
+            } else {
+                roots[w] = new StateNode(model, current.state, current.step);
+                roots[w].generateActionNodes(catalog);
             }
+            StateNode root = roots[w];
+            Symulator simon = new Symulator(model, rng.split());
+            // the other workers' trees are thrown away after merging so
+            // only worker 0 shares the transposition table
+            TranspositionTable workerTable = w == 0 ? table : null;
+            tasks.add(() -> search(root, simon, workerTable));
         }
 
-        // memory calculations
-        long tmp = Runtime.getRuntime().totalMemory()
-                        - Runtime.getRuntime().freeMemory();
-        if (tmp > maxMemUsed) maxMemUsed = tmp;
+        long simulations = 0;
+        try {
+            for (Future<Long> f : pool.invokeAll(tasks)) {
+                simulations += f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Root parallel search failed", e);
+        }
 
-        prevAction = res;
-        return res;
+        // Q(s,a) over all workers is the visit weighted average of each
+        // worker's Q(s,a)
+        // every root has every action, though not in the same order if
+        // this.current was widened before it became the root
+        for (int i = 0; i < current.children.length; i++) {
+            int n = 0;
+            double total = 0.0;
+            double squares = 0.0;
+            int id = current.children[i].id;
+            for (StateNode root : roots) {
+                ActionNode a = root.getChild(id);
+                n += a.getN();
+                total += a.getAverageExpectedValue() * a.getN();
+                squares += a.getSumSquares();
+            }
+            current.children[i].setStats(n, n == 0 ? 0.0 : total / n, squares);
+        }
+        current.updateQ();
+        return simulations;
+    }
+
+    // runs searchShared() on this.workers threads, all on this.current
+    // returns the number of simulations run by all workers
+    private long searchTreeParallel() {
+        // with a sweep limit the workers share the same total budget the
+        // serial search would get
+        long budget = sweepLimit > 0
+                ? (long) sweepLimit * current.children.length : Long.MAX_VALUE;
+        AtomicLong started = new AtomicLong();
+
+        List<Callable<Long>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            Symulator simon = new Symulator(model, rng.split());
+            tasks.add(() -> searchShared(current, simon, started, budget));
+        }
+
+        long simulations = 0;
+        try {
+            for (Future<Long> f : pool.invokeAll(tasks)) {
+                simulations += f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Tree parallel search failed", e);
+        }
+        return simulations;
+    }
+
+    // one worker of the tree parallel search, repeatedly simulates and rolls
+    // out the action of root picked by the tree policy (the least visited for
+    // the uniform policy). A virtual loss is held on the
+    // action while the simulation runs so the other workers spread out over
+    // the other actions instead of piling onto the same one
+    // returns the number of simulations run by this worker
+    private long searchShared(StateNode root, Symulator simon,
+                              AtomicLong started, long budget) {
+        long simulations = 0;
+        while (!timeUp() && started.getAndIncrement() < budget) {
+            // the uniform policy tries every root action, as the serial
+            // sweep does
+            ActionNode a = policy.select(root,
+                    policy instanceof TreePolicy.Uniform
+                            ? root.children.length : widen(root));
+            a.addVirtualLoss();
+
+            simon.resetPacked(root.state, root.step);
+            clock++;
+            StateNode newState = outcome(a, simon, table);
+            evaluate(newState, simon, table);
+
+            a.completeVirtualLoss(newState.averageExpectedValue);
+            root.updateQ();
+            simulations++;
+        }
+        return simulations;
+    }
+
+    // rolls out a new leaf. With a leaf batch, leafBatch rollouts are run from
+    // it at once on the common ForkJoinPool, each with its own Symulator.
+    // They all back up through the normal rollout path into the same
+    // ActionNodes, so afterwards node.averageExpectedValue is their average
+    // and the caller backs that up once
+    //
+    // with the BATCH evaluator the leaf batch instead runs in lockstep on the
+    // calling thread and the leaf's value is the average of the lanes
+    private void evaluate(StateNode node, Symulator simon,
+                          TranspositionTable table) {
+        if (evaluator == Evaluator.BATCH) {
+            // simon is still at node's state after simulating it, the lanes
+            // stop at the deadline as a scratch rollout does
+            double[] results = sweepLimit > 0
+                    ? simon.rolloutBatch(leafBatch, rolloutDepth)
+                    : simon.rolloutBatch(leafBatch, rolloutDepth, deadline);
+            double total = 0.0;
+            for (double r : results) {
+                total += r;
+            }
+            node.averageExpectedValue = total / results.length;
+            return;
+        }
+        if (evaluator == Evaluator.SCRATCH) {
+            // simon is still at node's state after simulating it
+            long leaf = simon.save();
+            double total = scratchRollout(node, simon);
+            int rollouts = 1;
+            // the rest of the batch is dropped at the deadline
+            while (rollouts < leafBatch && !timeUp()) {
+                simon.restore(leaf);
+                total += scratchRollout(node, simon);
+                rollouts++;
+            }
+            node.averageExpectedValue = total / rollouts;
+            return;
+        }
+        if (leafBatch <= 1 || isTerminal(node)) {
+            rollout(node, simon, table);
+            return;
+        }
+
+        // generate the actions up front so every rollout shares them
+        expand(node);
+
+        List<Callable<Void>> tasks = new ArrayList<>(leafBatch);
+        for (int i = 0; i < leafBatch; i++) {
+            Symulator leafSim = simon.split();
+            tasks.add(() -> {
+                leafSim.resetPacked(node.state, node.step);
+                rollout(node, leafSim, table);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Leaf parallel rollout failed", e);
+        }
+
+        // the rollouts' own updates may have raced, settle on the final value
+        node.updateQ();
+    }
+
+    /**
+     * Plays the default policy from node for up to rolloutDepth moves on
+     * simon's packed state, without creating any nodes
+     *
+     * @param node the leaf, simon must be at its state
+     * @return the sum of the rewards of the states visited, node's included,
+     * the same value a TREE rollout backs up. A rollout still going at the
+     * deadline stops there, as it would at its depth
+     */
+    private double scratchRollout(StateNode node, Symulator simon) {
+        long state = node.state;
+        int steps = node.step;
+        double total = node.reward;
+        for (int d = 0; d < rolloutDepth && steps < ps.getMaxT()
+                && StateCodec.pos(state) != ps.getN(); d++) {
+            if ((d & (DEADLINE_CHECK - 1)) == DEADLINE_CHECK - 1 && timeUp()) {
+                break;
+            }
+            state = simon.stepPacked(model.defaultPolicy(state));
+            if (state == Symulator.NO_STATE) {
+                break;
+            }
+            steps = simon.getSteps();
+            total += model.reward(state, steps);
+        }
+        return total;
     }
 
     /**
      * rolls out from given node according to some default policy - the
-     * 'rollout policy'
-     * at the moment the rollout policy is 'just keep moving'
+     * 'rollout policy', see Model.defaultPolicy()
      *
      *
      */
-    private void rollout(StateNode node, Symulator simon) {
+    private void rollout(StateNode node, Symulator simon,
+                         TranspositionTable table) {
         if (chatty)
             System.out.println("Rolling out StateNode with state: " +
-                    node.state.toString());
+                    codec.toString(node.state));
 
-        StateNode startState = node;
-        StateNode currentState = startState;
+        StateNode currentState = node;
 
+        // the actions taken, in order. With a transposition table a StateNode
+        // can have many parents so we back up along the path we took rather
+        // than following parent pointers
+        ArrayList<ActionNode> path = new ArrayList<>(DEPTH);
 
         int counter = 0;
         while (!isTerminal(currentState) && counter < DEPTH) {
             // gets an action for this state according to default policy
-            Action policy = Model.defaultPolicy(node.state);
-
-            // generate ActionNodes for current state
-            if (!currentState.hasActions) {
-                currentState.generateActionNodes(Model.getActions(currentState.state));
-            }
-
-            // get the ActionNode for policy at this state
-            ActionNode actionNode = currentState.getChild(policy);
+            int policy = model.defaultPolicyId(currentState.state);
 
-            // simulate next state
-            State newState = simon.step(policy);
+            // get the ActionNode for policy at this state, generating it
+            // if it hasn't been
+            ActionNode actionNode = actionNode(currentState, policy);
 
-            // create new StateNode
-            StateNode newStateNode = new StateNode(newState, simon.getSteps());
-
-            // add StateNode to the tree
-            currentState.getChild(policy).addChild(newStateNode);
+            // simulate next state and get the StateNode for it, adding it
+            // to the tree
+            StateNode newStateNode = outcome(actionNode, simon, table);
+            path.add(actionNode);
 
             // move pointer to new state
             currentState = newStateNode;
@@ -172,21 +978,13 @@ public class MCTS {
         // update the Q value of last node
         currentState.updateQ();
 
-        /*
-        *  The StateNode passed to this function, startState, has no parent
-        *  until it is connected with the rest of the tree in the mcts.simulate
-        *  function. That is while we update the parent action's Q(s,a) inside
-        *  the loop, because if currentState is still pointing to startState, it
-        *  will be null.
-        */
-
-        while (currentState.step > startState.step) {
+        for (int i = path.size() - 1; i >= 0; i--) {
             // update the Q value of state node's parent
-            double q = currentState.averageExpectedValue;
-            currentState.parent.update(q);
+            ActionNode actionNode = path.get(i);
+            actionNode.update(currentState.averageExpectedValue);
 
             // move pointer to the previous StateNode
-            currentState = currentState.parent.parent;
+            currentState = actionNode.parent;
 
             // update Q value
             currentState.updateQ();
@@ -195,8 +993,199 @@ public class MCTS {
             System.out.println("Done rolling out the node.");
     }
 
+    // number of actions of node the tree policy may pick from
+    private int actionWidth(StateNode node) {
+        int actions = node.actions;
+        if (actionK <= 0) {
+            return actions;
+        }
+        return Math.min(actions, widening(actionK, actionAlpha,
+                TreePolicy.visits(node)));
+    }
+
+    // ceil(k * n^alpha), at least 1
+    private static int widening(double k, double alpha, long n) {
+        return (int) Math.max(1, Math.ceil(k * Math.pow(n, alpha)));
+    }
+
+    // takes action a in simon and returns the StateNode for where it ended
+    // up. With outcome widening, once a has as many children as it may have
+    // simon is moved to one of them instead, picked in proportion to how
+    // much it has been searched
+    private StateNode outcome(ActionNode a, Symulator simon,
+                              TranspositionTable table) {
+        if (outcomeK > 0 && a.getChildCount()
+                >= widening(outcomeK, outcomeAlpha, a.getN())) {
+            StateNode existing = pickOutcome(a, simon);
+            if (existing != null) {
+                simon.resetPacked(existing.state, existing.step);
+                existing.lastUsed = clock;
+                return existing;
+            }
+        }
+        long nextState = simon.stepPacked(a.action);
+        return child(a, nextState, simon.getSteps(), table);
+    }
+
+    // a child of a with probability proportional to 1 + its visits, null if
+    // a has no children
+    private static StateNode pickOutcome(ActionNode a, Symulator simon) {
+        // one snapshot, so both passes see the same children
+        StateNode[] children = a.getChildren();
+        long total = 0;
+        for (StateNode child : children) {
+            total += 1 + TreePolicy.visits(child);
+        }
+        double r = simon.nextDouble() * total;
+        StateNode res = null;
+        for (StateNode child : children) {
+            res = child;
+            r -= 1 + TreePolicy.visits(child);
+            if (r < 0) {
+                break;
+            }
+        }
+        return res;
+    }
+
+    // the StateNode for reaching state at step by taking a, added as a child
+    // of a if it isn't one already. With a transposition table this is the
+    // one node shared by every path to (state, step)
+    private StateNode child(ActionNode a, long state, int step,
+                            TranspositionTable table) {
+        StateNode node;
+        if (table == null) {
+            node = a.getOrAddChild(model, state, step);
+        } else {
+            node = table.intern(state, step);
+            a.addChild(node);
+        }
+        // a node that has never been stamped is new to the tree
+        if (node.lastUsed == 0) {
+            nodeCount.increment();
+        }
+        node.lastUsed = clock;
+        return node;
+    }
+
+    // generates node's ActionNodes if it doesn't have them yet. With action
+    // widening only as many as a node with no visits may pick from, the
+    // rest are added by widen() as the node is visited
+    private void expand(StateNode node) {
+        if (!node.hasActions) {
+            nodeCount.add(node.generateActionNodes(catalog, actionK > 0
+                    ? widening(actionK, actionAlpha, 0) : Integer.MAX_VALUE));
+        }
+    }
+
+    // generates every one of node's ActionNodes that it doesn't have yet
+    private void expandAll(StateNode node) {
+        nodeCount.add(node.generateActionNodes(catalog));
+    }
+
+    // generates ActionNodes for as many of node's actions as the tree policy
+    // may now pick from and returns that number, see actionWidth()
+    private int widen(StateNode node) {
+        int width = actionWidth(node);
+        if (node.children.length < width) {
+            nodeCount.add(node.generateActionNodes(catalog, width));
+        }
+        return width;
+    }
+
+    // node's ActionNode for an action id, generated if node hasn't got to it
+    // yet with action widening
+    private ActionNode actionNode(StateNode node, int id) {
+        expand(node);
+        ActionNode a = node.getChild(id);
+        if (a == null) {
+            if (node.addActionNode(catalog, id)) {
+                nodeCount.increment();
+            }
+            a = node.getChild(id);
+        }
+        return a;
+    }
+
+    private void pruneIfOverBudget() {
+        if (nodeBudget > 0 && nodeCount.sum() > nodeBudget) {
+            prune();
+        }
+    }
+
+    /**
+     * Cut the tree under this.current down to PRUNE_TO of the node budget.
+     * Only call when nothing is searching.
+     *
+     * Each StateNode other than the root is scored by how much it has been
+     * searched over how long ago a search last passed through it,
+     * (1 + n) / (1 + age) where n is the visits of its actions, and the
+     * lowest scoring are removed from their ActionNode along with anything
+     * under them. Rollout chains that were only walked once score lowest. The
+     * ActionNode keeps its n and Q(s, a), so pruning loses detail further
+     * down the tree but none of the statistics used to pick an action.
+     */
+    private void prune() {
+        // every StateNode under the root with the ActionNode it hangs off
+        ArrayList<StateNode> nodes = new ArrayList<>();
+        ArrayList<ActionNode> parents = new ArrayList<>();
+        IdentityHashMap<StateNode, Boolean> seen = new IdentityHashMap<>();
+        ArrayDeque<StateNode> todo = new ArrayDeque<>();
+        todo.push(current);
+        seen.put(current, true);
+        while (!todo.isEmpty()) {
+            StateNode node = todo.pop();
+            if (!node.hasActions) {
+                continue;
+            }
+            for (ActionNode a : node.children) {
+                for (StateNode child : a.getChildren()) {
+                    if (seen.put(child, true) == null) {
+                        nodes.add(child);
+                        parents.add(a);
+                        todo.push(child);
+                    }
+                }
+            }
+        }
+
+        // score in the high 32 bits (non negative float bits sort the same as
+        // the floats) and the index in the low 32, ties go to the node found
+        // last, which is the deepest of a chain
+        long now = clock;
+        long[] order = new long[nodes.size()];
+        for (int i = 0; i < order.length; i++) {
+            StateNode node = nodes.get(i);
+            float score = (float) ((1.0 + TreePolicy.visits(node))
+                    / (1.0 + Math.max(0, now - node.lastUsed)));
+            order[i] = ((long) Float.floatToRawIntBits(score) << 32)
+                    | (order.length - 1 - i);
+        }
+        Arrays.sort(order);
+
+        // removing a node frees the nodes under it too, but they score no
+        // higher than it so have usually gone already
+        long count = nodeCount.sum();
+        long target = (long) (nodeBudget * PRUNE_TO);
+        for (int k = 0; k < order.length && count > target; k++) {
+            int i = order.length - 1 - (int) order[k];
+            StateNode node = nodes.get(i);
+            if (parents.get(i).removeChild(node)) {
+                count -= 1 + (node.hasActions ? node.children.length : 0);
+            }
+        }
+
+        if (table != null) {
+            table.rebuild(current);
+        }
+        nodeCount.reset();
+        nodeCount.add(countNodes(current));
+        prunes++;
+    }
+
+
     public boolean isTerminal(StateNode node) {
-        return node.step >= ps.getMaxT() || node.state.getPos() == ps.getN();
+        return node.step >= ps.getMaxT() || StateCodec.pos(node.state) == ps.getN();
     }
 
 
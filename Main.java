@@ -1,12 +1,14 @@
 package A2Code;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.SplittableRandom;
 import problem.Action;
 import problem.ActionType;
 import problem.ProblemSpec;
-import problem.Terrain;
 import simulator.Simulator;
 import simulator.State;
 
@@ -16,6 +18,9 @@ public class Main {
 	final static long PER_STEP = 200; // some buffer to account for
 	// constant expressions at start
 
+	// sweeps per decision when replaying a seeded race without --sweeps
+	final static int REPLAY_SWEEPS = 100;
+
     public static void main(String[] args) {
 
     	boolean trial = false;
@@ -24,12 +29,255 @@ public class Main {
 
 		boolean extroverted = true;
 
+		// optional flags after the input and output files
+		Long seed = null;
+		int sweeps = 0;
+		int workers = 1;
+		MCTS.Parallelism parallelism = MCTS.Parallelism.ROOT;
+		int leafBatch = 1;
+		MCTS.Evaluator evaluator = MCTS.Evaluator.TREE;
+		Integer rolloutDepth = null;
+		boolean bench = false;
+		int transposition = 0;
+		String store = "object";
+		long nodeBudget = 0;
+		String policy = "uniform";
+		double[] actionWidening = {0, 0};
+		double[] outcomeWidening = {0, 0};
+		// per step rewards are small (see Model.reward) so the usual sqrt(2)
+		// explores far too much
+		double exploration = 0.2;
+		boolean scaling = false;
+		boolean solve = false;
+		boolean informedRollouts = false;
+		// every decision searches for PER_STEP unless a TimeManager shares
+		// out a wall clock allowance for the whole race, PER_STEP for every
+		// time step by default
+		Long raceMillis = null;
+		boolean timeManager = false;
+		boolean earlyStop = false;
+		// where solved tables are kept between runs, shared by every JVM
+		String solveDir = System.getProperty("java.io.tmpdir")
+				+ File.separator + "a2-policies";
+		try {
+			for (int i = 2; i < args.length; i++) {
+				switch (args[i]) {
+					case "--seed":
+						seed = Long.parseLong(args[++i]);
+						break;
+					case "--sweeps":
+						sweeps = Integer.parseInt(args[++i]);
+						break;
+					case "--workers":
+						workers = Integer.parseInt(args[++i]);
+						break;
+					case "--parallel":
+						parallelism = MCTS.Parallelism.valueOf(
+								args[++i].toUpperCase());
+						break;
+					case "--leaf-batch":
+						leafBatch = Integer.parseInt(args[++i]);
+						break;
+					case "--evaluator":
+						evaluator = MCTS.Evaluator.valueOf(args[++i].toUpperCase());
+						break;
+					case "--rollout":
+						switch (args[++i]) {
+							case "move":
+								informedRollouts = false;
+								break;
+							case "informed":
+								informedRollouts = true;
+								break;
+							default:
+								throw new IllegalArgumentException(args[i]);
+						}
+						break;
+					case "--race-ms":
+						raceMillis = Long.parseLong(args[++i]);
+						timeManager = true;
+						break;
+					case "--time-manager":
+						timeManager = true;
+						break;
+					case "--early-stop":
+						earlyStop = true;
+						break;
+					case "--rollout-depth":
+						rolloutDepth = Integer.parseInt(args[++i]);
+						break;
+					case "--transposition":
+						transposition = Integer.parseInt(args[++i]);
+						break;
+					case "--store":
+						store = args[++i];
+						if (!store.equals("object") && !store.equals("heap")
+								&& !store.equals("offheap")) {
+							throw new IllegalArgumentException(store);
+						}
+						break;
+					case "--policy":
+						policy = args[++i];
+						break;
+					case "--c":
+						exploration = Double.parseDouble(args[++i]);
+						break;
+					case "--action-widening":
+						actionWidening = parsePair(args[++i]);
+						break;
+					case "--outcome-widening":
+						outcomeWidening = parsePair(args[++i]);
+						break;
+					case "--node-budget":
+						nodeBudget = Long.parseLong(args[++i]);
+						break;
+					case "--tree-mb":
+						nodeBudget = Long.parseLong(args[++i]) * 1024 * 1024
+								/ MCTS.NODE_BYTES;
+						break;
+					case "--bench":
+						bench = true;
+						break;
+					case "--scaling":
+						scaling = true;
+						break;
+					case "--solve":
+						solve = true;
+						break;
+					case "--solve-dir":
+						solve = true;
+						solveDir = args[++i];
+						break;
+					default:
+						throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Usage: Main <input> <output> "
+					+ "[--seed <long, replays the search but not the moves "
+					+ "the game simulator samples>] "
+					+ "[--sweeps <n>] [--workers <n>] [--parallel root|tree] "
+					+ "[--leaf-batch <k>] [--evaluator tree|batch|scratch] "
+					+ "[--rollout move|informed] "
+					+ "[--rollout-depth <moves, 0 to the end>] "
+					+ "[--transposition <slots>] [--store object|heap|offheap] "
+					+ "[--node-budget <nodes> | --tree-mb <MB>] "
+					+ "[--policy uniform|ucb1|puct|greedy] [--c <exploration>] "
+					+ "[--action-widening <k>,<alpha>] "
+					+ "[--outcome-widening <k>,<alpha>] "
+					+ "[--time-manager] [--race-ms <ms>] [--early-stop] "
+					+ "[--solve (plays a table of the best expected final "
+					+ "reward, not the summed reward the search maximises)] "
+					+ "[--solve-dir <dir>] [--scaling] [--bench]");
+			System.exit(1);
+			return;
+		}
+
+		TreePolicy treePolicy;
+		switch (policy) {
+			case "uniform":
+				treePolicy = TreePolicy.uniform();
+				break;
+			case "ucb1":
+				treePolicy = TreePolicy.ucb1(exploration);
+				break;
+			case "puct":
+				treePolicy = TreePolicy.puct(exploration);
+				break;
+			case "greedy":
+				treePolicy = TreePolicy.greedy();
+				break;
+			default:
+				System.out.println("Unknown tree policy: " + policy);
+				System.exit(1);
+				return;
+		}
+
+		// the lockstep lanes of a batch only ever move
+		if (informedRollouts && evaluator == MCTS.Evaluator.BATCH) {
+			System.out.println("--rollout informed doesn't work with "
+					+ "--evaluator batch, its rollouts only move");
+			System.exit(1);
+			return;
+		}
+
+		// the pooled search sweeps the root uniformly on one thread with
+		// tree rollouts into its own store, it would ignore any of these
+		if (!store.equals("object")) {
+			String ignored = workers > 1 ? "--workers"
+					: !policy.equals("uniform") ? "--policy " + policy
+					: actionWidening[0] > 0 ? "--action-widening"
+					: outcomeWidening[0] > 0 ? "--outcome-widening"
+					: evaluator != MCTS.Evaluator.TREE ? "--evaluator "
+							+ evaluator.name().toLowerCase()
+					: leafBatch > 1 ? "--leaf-batch"
+					: transposition > 0 ? "--transposition"
+					: nodeBudget > 0 ? "--node-budget or --tree-mb" : null;
+			if (ignored != null) {
+				System.out.println("--store " + store + " doesn't work with "
+						+ ignored);
+				System.exit(1);
+				return;
+			}
+		}
+
+		// a seeded race uses a fixed number of sweeps per decision so every
+		// simulate() call replays exactly, wall clock time can't. Only the
+		// search is seeded, the game Simulator from the support code draws
+		// its own moves, so a whole race only replays as far as the game
+		// happens to give the same states
+		if (seed != null && sweeps == 0) {
+			sweeps = REPLAY_SWEEPS;
+		}
+		SplittableRandom rng = seed == null ? new SplittableRandom()
+				: new SplittableRandom(seed);
+
         ProblemSpec ps;
         Simulator gameSimulator;
         try {
             ps = new PS(args[0]);
 
             Model model = new Model(ps);
+            model.informedRollouts = informedRollouts;
+
+			// the search works on packed states, only the game simulator
+			// sees simulator.State
+			StateCodec codec = model.getCodec();
+
+			if (bench) {
+				Benchmark.rollouts(model, rng);
+				Benchmark.treeStores(model, rng);
+				Benchmark.evaluators(model, rng);
+				return;
+			}
+
+			if (scaling) {
+				printScalingReport(model, rng, parallelism);
+				return;
+			}
+
+			// play the race from a table solved up front instead of
+			// searching, solving it only if no earlier run saved one
+			PolicyTable solution = null;
+			if (solve) {
+				long solveStart = System.nanoTime();
+				Path dir = Paths.get(solveDir);
+				solution = MappedPolicyTable.load(dir, model);
+				if (solution != null) {
+					if (extroverted) System.out.println(String.format("Mapped "
+							+ "%s in %.2fms", MappedPolicyTable.file(dir, ps),
+							(System.nanoTime() - solveStart) / 1e6));
+				} else {
+					Solver solver = new Solver(model);
+					solver.solve(Runtime.getRuntime().availableProcessors());
+					Path file = MappedPolicyTable.save(solver, dir, ps);
+					solution = solver;
+					if (extroverted) System.out.println(String.format("Solved "
+							+ "%d states x %d steps in %dms, saved to %s",
+							solver.getStatesPerStep(), ps.getMaxT(),
+							(System.nanoTime() - solveStart) / 1000000, file));
+				}
+			}
 
 			double totalReward = 0.0;
 			int successes = 0;
@@ -49,7 +297,8 @@ public class Main {
 
 				/*
 				 * Simulates actions uniformly from each state.
-				 * Rolls out simulated action according to default policy (just move)
+				 * Rolls out simulated action according to default policy (see
+				 * RolloutPolicy with --rollout informed, or just move)
 				 * Reward function values 'quick wins' more than long ones.
 				 * Simulates actions until PER_STEP timer has run out.
 				 */
@@ -57,14 +306,39 @@ public class Main {
 
 				if (extroverted) System.out.println("Creating root node from initial state...");
 
-				StateNode current = new StateNode(initialState, steps);
+				StateNode current = new StateNode(model, codec.encode(initialState),
+						steps);
 
 				if (extroverted) System.out.println("Creating MCTS...");
 
-				mcts = new MCTS(current, ps);
+				mcts = new MCTS(current, model, rng.split());
+				mcts.setSweepLimit(sweeps);
+				mcts.setWorkers(workers);
+				mcts.setParallelism(parallelism);
+				mcts.setLeafBatch(leafBatch);
+				mcts.setEvaluator(evaluator);
+				if (rolloutDepth != null) {
+					mcts.setRolloutDepth(rolloutDepth);
+				}
+				mcts.setTransposition(transposition);
+				mcts.setNodeBudget(nodeBudget);
+				mcts.setTreePolicy(treePolicy);
+				mcts.setActionWidening(actionWidening[0], actionWidening[1]);
+				mcts.setOutcomeWidening(outcomeWidening[0], outcomeWidening[1]);
+				mcts.setEarlyStop(earlyStop);
+				if (store.equals("heap")) {
+					mcts.setNodeStore(new HeapNodeStore(1 << 16));
+				} else if (store.equals("offheap")) {
+					mcts.setNodeStore(new OffHeapNodeStore());
+				}
 				mcts.movePointer(current); // inherently done in MCTS constructor
 				// but do it anyways for good measure
 
+				// no decision searches for longer than PER_STEP either way
+				TimeManager timer = !timeManager ? null : new TimeManager(model,
+						raceMillis != null ? raceMillis : PER_STEP * ps.getMaxT(),
+						PER_STEP);
+
 				State nextState;
 
 				while(true) {
@@ -72,7 +346,7 @@ public class Main {
 						System.out.println();
 						System.out.println("Starting simulation...");
 						System.out.println("Game time elapsed		- " + steps);
-						System.out.print("Current state			- " + current.state.toString());
+						System.out.print("Current state			- " + codec.toString(current.state));
 					}
 
 					if (steps >= ps.getMaxT()) {
@@ -85,7 +359,10 @@ public class Main {
 						break;
 					}
 
-					Action nextAction = mcts.simulate(PER_STEP);
+					Action nextAction = solution != null
+							? solution.policy(current.state, steps)
+							: timer != null ? mcts.simulate(timer, steps)
+							: mcts.simulate(PER_STEP);
 
 					if (extroverted) {
 						System.out.println("Simulation output		- " + nextAction.getText());
@@ -94,7 +371,7 @@ public class Main {
 					nextState = gameSimulator.step(nextAction);
 					steps = gameSimulator.getSteps();
 
-					totalReward += Model.reward(nextState, steps);
+					totalReward += model.reward(nextState, steps);
 
 					if (extroverted) System.out.print("Game output		 		- "
 							+ nextState.toString());
@@ -110,28 +387,16 @@ public class Main {
 						break;
 					}
 
-					// get the ActionNode for the action we just did
-					ActionNode node = current.children.get(nextAction.getText());
-
-					// if we already have a StateNode for the state the simulator
-					// gave us, get it
-					StateNode next = node.getStateNode(nextState);
-
-					if (next == null) {
-						// we need to make a new StateNode
-						next = new StateNode(nextState, steps);
-					}
-
-					// disconnect from the tree, using an online method we don't
-					// care about what's already happened
-					next.parent = null;
-
-					// reset ptrs for next simulation
-					current = next;
-					mcts.movePointer(current);
-					Model.n = current.state.getPos();
+					// move the search to the state the simulator gave us,
+					// keeping what we already know about it
+					current = solution != null
+							? new StateNode(model, codec.encode(nextState), steps)
+							: mcts.advance(nextAction, codec.encode(nextState),
+									steps);
+					model.n = StateCodec.pos(current.state);
 				}
-				Model.n = 1;
+				model.n = 1;
+				mcts.shutdown();
 
 				if (trial) {
 					long tmpTime = (System.currentTimeMillis()-startTime);
@@ -149,9 +414,43 @@ public class Main {
 					sb.append(tmpTime);
 					sb.append("	| Max memory used: ");
 					sb.append(mcts.maxMemUsed/(1024*1024));
-					sb.append("MB	|");
+					sb.append("MB	| Iterations per decision: ");
+					sb.append(mcts.iterations / Math.max(1, mcts.decisions));
+					sb.append("	| Reused per decision: ");
+					sb.append(mcts.reusedNodes / Math.max(1, mcts.decisions));
+					sb.append(" nodes, ");
+					sb.append(mcts.reusedVisits / Math.max(1, mcts.decisions));
+					sb.append(" visits (");
+					sb.append(String.format("%.1f%%", 100.0 * mcts.reusedVisits
+							/ Math.max(1, mcts.iterations)));
+					sb.append(" of search)");
+					if (timer != null || earlyStop) {
+						sb.append("	| Stopped early: ");
+						sb.append(mcts.stoppedEarly);
+						sb.append(" of ");
+						sb.append(mcts.decisions);
+						sb.append(", saved ");
+						sb.append(mcts.savedMillis / Math.max(1, mcts.decisions));
+						sb.append("ms per decision");
+					}
+					sb.append("	|");
 
 					System.out.println(sb.toString());
+					System.out.println("Decision latency: " + mcts.latency
+							+ (mcts.overrun.getCount() > 0
+									? ", overrun: " + mcts.overrun : ""));
+					if (nodeBudget > 0) {
+						System.out.println(String.format("Node budget: %d, "
+								+ "pruned %d times, %d nodes at the end",
+								nodeBudget, mcts.prunes, mcts.getNodeCount()));
+					}
+					TranspositionTable table = mcts.getTranspositionTable();
+					if (table != null) {
+						System.out.println(String.format("Transpositions: %d "
+								+ "of %d lookups (%.1f%%), %d nodes in table",
+								table.getHits(), table.getLookups(),
+								100 * table.hitRate(), table.size()));
+					}
 					totalTime += tmpTime;
 					totalMemory += mcts.maxMemUsed;
 
@@ -171,110 +470,51 @@ public class Main {
         }
     }
     
-    // Construct a table: 
-    /*
-     * STATE         | -4, -3, -2, ... 4, 5, Slip, Breakdown  
-     * P(Te, Dr, CT) |0.1  0.1 0.05          0.05       0.5 
-     * 
-     * */
-    private static LinkedList<double[]> createTransitionTable(ProblemSpec ps, Simulator sym){
-    	
-    	LinkedList<double []> tf = new LinkedList<double []>();
-        
-        int combo = ps.getCarOrder().size() * ps.getDriverOrder().size() * ps.getTerrainMap().size(); 
-        int noCars = ps.getCarOrder().size();
-        int noDrivers = ps.getDriverOrder().size();
-        
-        // get ready for the most nested forloop ever 
-    	for(int j=0; j<noCars; j++) {
-    		for(int k=0; k<noDrivers; k++) {
-    			for(int l=-4; l<=5; l++) {
-        			;
-        		}
-    		}
+    // "<k>,<alpha>" for the progressive widening options
+    private static double[] parsePair(String arg) {
+    	String[] parts = arg.split(",");
+    	if (parts.length != 2) {
+    		throw new IllegalArgumentException(arg);
     	}
-
-        
-        for(int i=0; i < combo; i++) {
-        	if(i < noCars) {
-        		tf.add(ps.getCarMoveProbability().get(ps.getCarOrder().get(i)));
-        	} else if (i < noDrivers + noCars){
-        		tf.add(ps.getDriverMoveProbability().get(ps.getDriverOrder().get(i-noDrivers)));
-        	} 
-        }
-     	return tf;     	
-	
+    	return new double[] {Double.parseDouble(parts[0]),
+    			Double.parseDouble(parts[1])};
     }
-    
+
     /*
-     * generates a list of states that we are calculating probablities for
+     * Runs the first few decisions of a race from the start state with 1, 2,
+     * 4, ... workers up to the number of cores and prints how many
+     * simulations each decision gets.
      */
-    private static LinkedList<String> getStateLabels(ProblemSpec ps){
-        int noCars = ps.getCarOrder().size();
-        int noDrivers = ps.getDriverOrder().size();
-        
-        LinkedList<String> states = new LinkedList<String>(); 
-    	// states labels 
-    	for(int j=0; j<noCars; j++) {
-    		for(int k=0; k<noDrivers; k++) {
-        		states.add(String.
-        				format("P(%s, %s)", ps.getCarOrder().get(j), ps.getDriverOrder().get(k)));
+    private static void printScalingReport(Model model, SplittableRandom rng,
+    		MCTS.Parallelism parallelism) {
+    	ProblemSpec ps = model.getSpec();
+    	final int decisions = 5;
+    	int cores = Runtime.getRuntime().availableProcessors();
+
+    	System.out.println("Workers	| Iterations per decision	| Speedup");
+    	double base = 0;
+    	for (int w = 1; ; w = Math.min(w * 2, cores)) {
+    		long initialState = model.getCodec().encode(State.getStartState(
+    				ps.getFirstCarType(), ps.getFirstDriver(),
+    				ps.getFirstTireModel()));
+    		MCTS mcts = new MCTS(new StateNode(model, initialState, 0), model,
+    				rng.split());
+    		mcts.setWorkers(w);
+    		mcts.setParallelism(parallelism);
+    		for (int i = 0; i < decisions; i++) {
+    			// fresh root each time so every decision starts from nothing
+    			mcts.movePointer(new StateNode(model, initialState, 0));
+    			mcts.simulate(PER_STEP);
     		}
+    		mcts.shutdown();
+
+    		double perDecision = (double) mcts.iterations / mcts.decisions;
+    		if (w == 1) base = perDecision;
+    		System.out.println(String.format("%d	| %.0f			| %.2fx", w,
+    				perDecision, perDecision / base));
+    		if (w == cores) break;
     	}
-    	return states; 
     }
-    
-    
-    // this is hideous im sorry- but it is useful!  
-    private static void printTransitionTable(ProblemSpec ps, LinkedList<double []> tf, Terrain[] terrains) {
-        LinkedList<String> states = getStateLabels(ps);
-    	
-    	StringBuilder st = new StringBuilder(); 
-    	st.append("STATE \t\t\t\t\t| ");
-
-    	for(int i=-4; i<=5; i++) {
-            if(terrains[i+4].toString().length() > 4) {
-                st.append(terrains[i+4] + "\t| ");            	
-            } else {
-            	st.append(terrains[i+4] + "\t\t| ");
-            }
-    	}    	
-    	st.append("\n");
-    	
-    	st.append("STATE \t\t\t\t\t| ");
-    	int rowchar = 60; 
-    	for(int i=-4; i<=5; i++) {
-                st.append(i + "\t\t| ");
-            rowchar += 18; 
-    	}
-    	st.append("sl\t\t| br\n");
-    	
-    	for(int i = 0; i<rowchar; i++) {
-    		st.append("-");
-    	}
-    	st.append("\n");
-    
-    	for(int i=0; i < tf.size(); i++) {
-    		st.append(states.get(i));
-    		if(states.get(i).length() > 18) {
-            	st.append("\t");    			
-    		} else {
-            	st.append("\t\t");
-    		}
-    		
-    		for(int j=0; j < tf.get(i).length; j++) {
-    			if(j==0) {
-        			st.append(" \t\t| " + tf.get(i)[j]);    				
-    			} else {
-        			st.append(" \t\t " + tf.get(i)[j]);
-    			}
-    		}
-        	st.append("\n");
-        }
-    	
-    	System.out.print(st);
-	}
-
 
 	// this is legit just to get a full print but still pull support code 
     private static class PS extends ProblemSpec{
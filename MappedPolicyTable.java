@@ -0,0 +1,239 @@
+package A2Code;
+
+import problem.Action;
+import problem.ProblemSpec;
+import problem.Terrain;
+import problem.Tire;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Solver's tables saved to a file and queried straight out of a read only
+ * memory mapping. Nothing is parsed or copied on load, so opening a table
+ * takes milliseconds whatever its size, and every JVM on the host mapping
+ * the same file shares one copy of it in the page cache.
+ *
+ * Files are named after specHash() so a table is only ever used for the
+ * spec it was solved for. Layout, little endian:
+ *
+ *   HEADER_BYTES  MAGIC, VERSION, spec hash (long), states per step, maxT
+ *   float values  maxT * states, step by step, in StateIndex order
+ *   byte policy   maxT * states ActionCatalog ids, in the same order
+ */
+public class MappedPolicyTable implements PolicyTable {
+
+    private static final int MAGIC = 0x41325054;
+
+    // bump whenever the layout or what Solver computes changes, so old
+    // files are solved again
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+
+    private final ProblemSpec ps;
+    private final Model model;
+    private final ActionCatalog catalog;
+    private final StateIndex index;
+    private final int statesPerStep;
+    private final int policyOffset;
+    private final MappedByteBuffer buffer;
+
+    private MappedPolicyTable(Model model, MappedByteBuffer buffer) {
+        this.ps = model.getSpec();
+        this.model = model;
+        this.catalog = model.getCatalog();
+        this.index = new StateIndex(ps);
+        this.statesPerStep = index.size();
+        this.policyOffset = HEADER_BYTES
+                + ps.getMaxT() * statesPerStep * Float.BYTES;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The file in dir holding the table for ps
+     */
+    public static Path file(Path dir, ProblemSpec ps) {
+        return dir.resolve(String.format("%016x.policy", specHash(ps)));
+    }
+
+    /**
+     * Map the table saved for the model's spec in dir
+     *
+     * @return the table, or null if none has been saved for this spec
+     * @throws IOException if the file can't be mapped
+     */
+    public static MappedPolicyTable load(Path dir, Model model)
+            throws IOException {
+        ProblemSpec ps = model.getSpec();
+        Path file = file(dir, ps);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // written by an older version, or not by us at all
+        int states = new StateIndex(ps).size();
+        if (buffer.capacity() != fileBytes(states, ps.getMaxT())
+                || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != specHash(ps)
+                || buffer.getInt(16) != states
+                || buffer.getInt(20) != ps.getMaxT()) {
+            return null;
+        }
+        return new MappedPolicyTable(model, buffer);
+    }
+
+    /**
+     * Save a solved Solver's tables for ps in dir. The file is written
+     * under a temporary name and moved into place, so another JVM never
+     * maps half a table.
+     *
+     * @return the file saved to
+     * @throws IOException if the file can't be written
+     */
+    public static Path save(Solver solver, Path dir, ProblemSpec ps)
+            throws IOException {
+        if (!solver.isSolved()) {
+            throw new IllegalStateException("Not solved yet");
+        }
+        int states = solver.getStatesPerStep();
+        long bytes = fileBytes(states, ps.getMaxT());
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("A " + bytes / (1024 * 1024)
+                    + "MB table is too big to map");
+        }
+
+        Files.createDirectories(dir);
+        Path file = file(dir, ps);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(),
+                ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, bytes);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putLong(specHash(ps))
+                    .putInt(states).putInt(ps.getMaxT());
+            out.position(HEADER_BYTES);
+            for (int step = 0; step < ps.getMaxT(); step++) {
+                for (float v : solver.getValues(step)) {
+                    out.putFloat(v);
+                }
+            }
+            for (int step = 0; step < ps.getMaxT(); step++) {
+                out.put(solver.getPolicy(step));
+            }
+            out.force();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    // size of the file for a table
+    private static long fileBytes(int states, int maxT) {
+        return HEADER_BYTES + (long) states * maxT * (Float.BYTES + Byte.BYTES);
+    }
+
+    /**
+     * 64 bit hash of everything in ps the solution depends on, the start
+     * state isn't one of them as every state is solved
+     */
+    public static long specHash(ProblemSpec ps) {
+        Fnv1a hash = new Fnv1a();
+        try (DataOutputStream out = new DataOutputStream(hash)) {
+            out.writeInt(VERSION);
+            out.writeInt(ps.getLevel().getLevelNumber());
+            out.writeDouble(ps.getDiscountFactor());
+            out.writeInt(ps.getSlipRecoveryTime());
+            out.writeInt(ps.getRepairTime());
+            out.writeInt(ps.getN());
+            out.writeInt(ps.getMaxT());
+            for (Terrain t : ps.getEnvironmentMap()) {
+                out.writeUTF(t.toString());
+            }
+            for (String car : ps.getCarOrder()) {
+                out.writeUTF(car);
+                writeDoubles(out, ps.getCarMoveProbability().get(car));
+            }
+            for (String driver : ps.getDriverOrder()) {
+                out.writeUTF(driver);
+                writeDoubles(out, ps.getDriverMoveProbability().get(driver));
+            }
+            for (Tire tire : ps.getTireOrder()) {
+                out.writeUTF(tire.toString());
+                writeDoubles(out, ps.getTireModelMoveProbability().get(tire));
+            }
+            writeDoubles(out, ps.getSlipProbability());
+            for (int[] row : ps.getFuelUsage()) {
+                for (int fuel : row) {
+                    out.writeInt(fuel);
+                }
+            }
+        } catch (IOException e) {
+            // nothing is really written anywhere
+            throw new IllegalStateException(e);
+        }
+        return hash.value;
+    }
+
+    // 64 bit FNV-1a of everything written to it, cheap enough that mapping a
+    // table doesn't wait on setting up a MessageDigest
+    private static final class Fnv1a extends OutputStream {
+        private long value = 0xcbf29ce484222325L;
+
+        @Override
+        public void write(int b) {
+            value = (value ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values)
+            throws IOException {
+        out.writeInt(values.length);
+        for (double v : values) {
+            out.writeDouble(v);
+        }
+    }
+
+    @Override
+    public int policyId(long state, int step) {
+        if (step >= ps.getMaxT()) {
+            return ActionCatalog.MOVE;
+        }
+        return buffer.get(policyOffset + step * statesPerStep
+                + index.index(state)) & 0xFF;
+    }
+
+    @Override
+    public Action policy(long state, int step) {
+        return catalog.action(policyId(state, step));
+    }
+
+    @Override
+    public double value(long state, int step) {
+        if (step >= ps.getMaxT() || StateCodec.pos(state) == ps.getN()) {
+            return Solver.finalReward(model, state, step);
+        }
+        return buffer.getFloat(HEADER_BYTES
+                + (step * statesPerStep + index.index(state)) * Float.BYTES);
+    }
+}
@@ -2,34 +2,105 @@ package A2Code;
 
 import problem.*;
 import simulator.State;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- *
+ * Everything the search needs to know about one ProblemSpec: the tables
+ * compiled for it, the reward and the default policy. Create one per spec
+ * and hand it to whatever works on that spec, nothing here is shared
+ * between specs, so several can be searched in the same JVM.
  */
 public class Model {
 
-    private static ProblemSpec ps;
-    public static int n;
+    private final ProblemSpec ps;
+
+    // position of the state being decided on, states behind it are
+    // penalised (see reward()). Only change it between searches
+    public int n;
+
+    // whether rollouts follow RolloutPolicy rather than just moving, off
+    // unless asked for (--rollout informed)
+    public boolean informedRollouts = false;
+
+    private final StateCodec codec;
+    private final TransitionKernel kernel;
+    private final ActionCatalog catalog;
+    private final RolloutPolicy rolloutPolicy;
 
     public Model(ProblemSpec ps) {
         this.ps = ps;
         this.n = 1;
+        this.codec = new StateCodec(ps);
+        this.kernel = new TransitionKernel(ps);
+        this.catalog = new ActionCatalog(ps);
+        // last, it plays the spec through a Symulator on this model
+        this.rolloutPolicy = new RolloutPolicy(this);
+    }
+
+    public ProblemSpec getSpec() {
+        return ps;
+    }
+
+    /**
+     * Converts between packed states and simulator.State for this spec
+     */
+    public StateCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Move distributions and fuel usage compiled for this spec
+     */
+    public TransitionKernel getKernel() {
+        return kernel;
     }
 
-    public static double reward(State state, int steps) {
+    /**
+     * The actions of this spec by id
+     */
+    public ActionCatalog getCatalog() {
+        return catalog;
+    }
+
+    public RolloutPolicy getRolloutPolicy() {
+        return rolloutPolicy;
+    }
+
+    public double reward(State state, int steps) {
+        return reward(state.getPos(), steps);
+    }
+
+    /**
+     * Reward for a state packed by StateCodec
+     */
+    public double reward(long state, int steps) {
+        return reward(StateCodec.pos(state), steps);
+    }
+
+    /**
+     * Reward for being at position pos after the given number of steps, the
+     * rest of the state doesn't matter
+     */
+    public double reward(int pos, int steps) {
+        return reward(n, pos, steps);
+    }
+
+    /**
+     * reward() with states behind position from penalised, rather than the
+     * ones behind n, so it doesn't change as the race goes on
+     */
+    public double reward(int from, int pos, int steps) {
         double res = 0.0;
-        if (state.getPos() < n) {
+        if (pos < from) {
             return -0.05;
         }
         int stepsLeft = ps.getMaxT() - steps;
 
         // if goal state
-        if (state.getPos() == ps.getN()) {
+        if (pos == ps.getN()) {
             res = 0.5 + 0.5 * (double)stepsLeft / ps.getMaxT();
         } else {
-            res = 0.0001 * state.getPos() * stepsLeft;
+            res = 0.0001 * pos * stepsLeft;
         }
         // getting some weird 0s
         res = Math.max(res, 0.0);
@@ -39,103 +110,30 @@ public class Model {
     }
 
     /**
-     * Simply just returns MOVE at this point.
-     * Abstracted it to make it easier to change later
-     * @param state
+     * The action rollouts take in a state, from RolloutPolicy or just MOVE
+     * @param state packed by StateCodec
      * @return
      */
-    public static Action defaultPolicy(State state) {
-        return new Action(ActionType.MOVE);
+    public Action defaultPolicy(long state) {
+        return catalog.action(defaultPolicyId(state));
     }
 
     /**
-     * Yanked from old MonteCarloTreeSearch
-     * @param state
+     * defaultPolicy() as an ActionCatalog id
+     * @param state packed by StateCodec
      * @return
      */
-    public static List<Action> getActions(State state) {
-        // get action types
-        List<ActionType> tmp = ps.getLevel().getAvailableActions();
-
-        List<Action> res = new LinkedList<>();
-
-        String cur;
-        // A1: add move action
-        res.add(new Action(tmp.get(0)));
-
-        // A2: add change car actions
-        cur = state.getCarType();
-
-        for (String s : ps.getCarOrder()) {
-            if (!s.equals(cur)) {
-                res.add(new Action(tmp.get(1), s));
-            }
-        }
-
-        // A3: add change driver actions
-        cur = state.getDriver();
-
-        for (String s : ps.getDriverOrder()) {
-            if (!s.equals(cur)) {
-                res.add(new Action(tmp.get(2), s));
-            }
-        }
-
-        // A4: add change tire actions
-        Tire curT = state.getTireModel();
-
-        for (Tire t : ps.getTireOrder()) {
-            if (!t.equals(curT)) {
-                res.add(new Action(tmp.get(3), t));
-            }
-        }
-
-        // Level UP BOIS
-        if (ps.getLevel().getLevelNumber() >= 2){
-
-            // A5: add fuel
-            int curFuel = state.getFuel();
-            if (curFuel < 20) {
-                res.add(new Action(tmp.get(4), 10));
-            }
-
-            // A6: change tire pressure (50%, 75% or 100%)
-            TirePressure curPressure = state.getTirePressure();
-            for(TirePressure i: TirePressure.values()) {
-                if(i != curPressure) {
-                    res.add(new Action(tmp.get(5), i));
-                }
-            }
-        }
-
-        // Level UP once again
-        if (ps.getLevel().getLevelNumber() >= 4){
-            // A7: combination of changing car type and changing driver
-            String carType = state.getCarType();
-            String driver = state.getDriver();
-            for (String i : ps.getCarOrder()) {
-                for (String j: ps.getDriverOrder()) {
-                    if (carType != i && driver != j) {
-                        res.add(new Action(tmp.get(6), i, j));
-                    }
-                }
-            }
-        }
+    public int defaultPolicyId(long state) {
+        return informedRollouts ? rolloutPolicy.actionId(state)
+                : ActionCatalog.MOVE;
+    }
 
-        // and once more
-        if (ps.getLevel().getLevelNumber() >= 5){
-            // A8: combination of changing tire, fuel, pressure
-            TirePressure pressure = state.getTirePressure();
-            Tire tire = state.getTireModel();
-            int curFuel = state.getFuel();
-            for(Tire i: ps.getTireOrder()) {
-                    for(TirePressure k: TirePressure.values()) {
-                        if(tire != i  && pressure != k) {
-                            res.add(new Action(tmp.get(7), i, Math.min(10, 50), k));
-                        }
-                    }
-            }
-        }
-        return res;
+    /**
+     * The actions that can be taken in a state, see ActionCatalog
+     * @param state packed by StateCodec
+     * @return
+     */
+    public List<Action> getActions(long state) {
+        return catalog.validActions(state);
     }
 }
@@ -0,0 +1,110 @@
+package A2Code;
+
+/**
+ * Storage for a search tree as columns of primitives indexed by int node
+ * ids, instead of StateNode and ActionNode objects. Used by PooledSearch.
+ *
+ * State nodes and action nodes share the same columns:
+ *
+ *   key         packed state (state nodes) or action id (action nodes)
+ *   value       averageExpectedValue (state) or Q(s, a) (action)
+ *   visits      number of times the node has been backed up through
+ *   reward      Model.reward of the state (state nodes only)
+ *   squares     sum of the squared results behind Q(s, a) (action nodes
+ *               only)
+ *   step        time step the state is reached at (state nodes only)
+ *   firstChild  first child id or NONE
+ *   nextSibling next child of the same parent or NONE
+ *
+ * A new node has every column zeroed except firstChild and nextSibling,
+ * which are NONE. Not thread safe.
+ */
+public interface NodeStore extends AutoCloseable {
+
+    // id meaning 'no node'
+    int NONE = -1;
+
+    // create a new node and return its id
+    int allocate();
+
+    // number of nodes allocated since the last clear()
+    int size();
+
+    // drop every node, ids start from 0 again
+    void clear();
+
+    // keep only root and the nodes under it, renumbered from 0, and free
+    // everything else. Returns the new id of root
+    int compact(int root);
+
+    // bytes of storage used per node
+    int bytesPerNode();
+
+    // bytes of storage currently reserved
+    long reservedBytes();
+
+    long key(int id);
+
+    void setKey(int id, long key);
+
+    double value(int id);
+
+    void setValue(int id, double value);
+
+    int visits(int id);
+
+    void setVisits(int id, int visits);
+
+    double reward(int id);
+
+    void setReward(int id, double reward);
+
+    double squares(int id);
+
+    void setSquares(int id, double squares);
+
+    int step(int id);
+
+    void setStep(int id, int step);
+
+    int firstChild(int id);
+
+    void setFirstChild(int id, int child);
+
+    int nextSibling(int id);
+
+    void setNextSibling(int id, int sibling);
+
+    // release the storage, the store can't be used afterwards
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Copy root and every node under it from one store to another, keeping
+     * the order of each node's children
+     *
+     * @return the id of root in the destination store
+     */
+    static int copySubtree(NodeStore from, NodeStore to, int root) {
+        int copy = to.allocate();
+        to.setKey(copy, from.key(root));
+        to.setValue(copy, from.value(root));
+        to.setVisits(copy, from.visits(root));
+        to.setReward(copy, from.reward(root));
+        to.setSquares(copy, from.squares(root));
+        to.setStep(copy, from.step(root));
+
+        int last = NONE;
+        for (int c = from.firstChild(root); c != NONE; c = from.nextSibling(c)) {
+            int child = copySubtree(from, to, c);
+            if (last == NONE) {
+                to.setFirstChild(copy, child);
+            } else {
+                to.setNextSibling(last, child);
+            }
+            last = child;
+        }
+        return copy;
+    }
+}
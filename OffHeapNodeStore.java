@@ -0,0 +1,199 @@
+package A2Code;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+
+/**
+ * NodeStore kept outside the Java heap in MemorySegments, so a tree of any
+ * size adds nothing for the garbage collector to trace or copy.
+ *
+ * Nodes are fixed size records packed into chunks of CHUNK_NODES, all
+ * allocated from one Arena. Growing adds a chunk and never moves a node.
+ * Nothing is freed a node at a time: clear() and compact() move what is
+ * kept into a new Arena and close the old one, which releases all of its
+ * memory at once.
+ *
+ * Needs the java.lang.foreign API (final in Java 22, preview in 21).
+ */
+public class OffHeapNodeStore implements NodeStore {
+
+    // record layout, the 8 byte fields first so they stay aligned
+    private static final long KEY = 0;
+    private static final long VALUE = 8;
+    private static final long REWARD = 16;
+    private static final long SQUARES = 24;
+    private static final long VISITS = 32;
+    private static final long STEP = 36;
+    private static final long FIRST_CHILD = 40;
+    private static final long NEXT_SIBLING = 44;
+    private static final int BYTES_PER_NODE = 48;
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_NODES = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_NODES - 1;
+
+    private Arena arena;
+    private ArrayList<MemorySegment> chunks;
+    private int size;
+
+    public OffHeapNodeStore() {
+        open();
+    }
+
+    private void open() {
+        arena = Arena.ofShared();
+        chunks = new ArrayList<>();
+        size = 0;
+    }
+
+    // the chunk holding node id
+    private MemorySegment chunk(int id) {
+        return chunks.get(id >>> CHUNK_BITS);
+    }
+
+    // offset of node id in its chunk
+    private static long offset(int id) {
+        return (long) (id & CHUNK_MASK) * BYTES_PER_NODE;
+    }
+
+    @Override
+    public int allocate() {
+        if (size == chunks.size() * CHUNK_NODES) {
+            chunks.add(arena.allocate((long) CHUNK_NODES * BYTES_PER_NODE,
+                    Long.BYTES));
+        }
+        int id = size++;
+        MemorySegment chunk = chunk(id);
+        long base = offset(id);
+        chunk.set(ValueLayout.JAVA_LONG, base + KEY, 0L);
+        chunk.set(ValueLayout.JAVA_DOUBLE, base + VALUE, 0.0);
+        chunk.set(ValueLayout.JAVA_DOUBLE, base + REWARD, 0.0);
+        chunk.set(ValueLayout.JAVA_DOUBLE, base + SQUARES, 0.0);
+        chunk.set(ValueLayout.JAVA_INT, base + VISITS, 0);
+        chunk.set(ValueLayout.JAVA_INT, base + STEP, 0);
+        chunk.set(ValueLayout.JAVA_INT, base + FIRST_CHILD, NONE);
+        chunk.set(ValueLayout.JAVA_INT, base + NEXT_SIBLING, NONE);
+        return id;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        arena.close();
+        open();
+    }
+
+    @Override
+    public int compact(int root) {
+        OffHeapNodeStore kept = new OffHeapNodeStore();
+        int id = NodeStore.copySubtree(this, kept, root);
+        arena.close();
+        arena = kept.arena;
+        chunks = kept.chunks;
+        size = kept.size;
+        return id;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+        chunks.clear();
+        size = 0;
+    }
+
+    @Override
+    public int bytesPerNode() {
+        return BYTES_PER_NODE;
+    }
+
+    @Override
+    public long reservedBytes() {
+        return (long) chunks.size() * CHUNK_NODES * BYTES_PER_NODE;
+    }
+
+    @Override
+    public long key(int id) {
+        return chunk(id).get(ValueLayout.JAVA_LONG, offset(id) + KEY);
+    }
+
+    @Override
+    public void setKey(int id, long key) {
+        chunk(id).set(ValueLayout.JAVA_LONG, offset(id) + KEY, key);
+    }
+
+    @Override
+    public double value(int id) {
+        return chunk(id).get(ValueLayout.JAVA_DOUBLE, offset(id) + VALUE);
+    }
+
+    @Override
+    public void setValue(int id, double value) {
+        chunk(id).set(ValueLayout.JAVA_DOUBLE, offset(id) + VALUE, value);
+    }
+
+    @Override
+    public int visits(int id) {
+        return chunk(id).get(ValueLayout.JAVA_INT, offset(id) + VISITS);
+    }
+
+    @Override
+    public void setVisits(int id, int visits) {
+        chunk(id).set(ValueLayout.JAVA_INT, offset(id) + VISITS, visits);
+    }
+
+    @Override
+    public double reward(int id) {
+        return chunk(id).get(ValueLayout.JAVA_DOUBLE, offset(id) + REWARD);
+    }
+
+    @Override
+    public void setReward(int id, double reward) {
+        chunk(id).set(ValueLayout.JAVA_DOUBLE, offset(id) + REWARD, reward);
+    }
+
+    @Override
+    public double squares(int id) {
+        return chunk(id).get(ValueLayout.JAVA_DOUBLE, offset(id) + SQUARES);
+    }
+
+    @Override
+    public void setSquares(int id, double squares) {
+        chunk(id).set(ValueLayout.JAVA_DOUBLE, offset(id) + SQUARES, squares);
+    }
+
+    @Override
+    public int step(int id) {
+        return chunk(id).get(ValueLayout.JAVA_INT, offset(id) + STEP);
+    }
+
+    @Override
+    public void setStep(int id, int step) {
+        chunk(id).set(ValueLayout.JAVA_INT, offset(id) + STEP, step);
+    }
+
+    @Override
+    public int firstChild(int id) {
+        return chunk(id).get(ValueLayout.JAVA_INT, offset(id) + FIRST_CHILD);
+    }
+
+    @Override
+    public void setFirstChild(int id, int child) {
+        chunk(id).set(ValueLayout.JAVA_INT, offset(id) + FIRST_CHILD, child);
+    }
+
+    @Override
+    public int nextSibling(int id) {
+        return chunk(id).get(ValueLayout.JAVA_INT, offset(id) + NEXT_SIBLING);
+    }
+
+    @Override
+    public void setNextSibling(int id, int sibling) {
+        chunk(id).set(ValueLayout.JAVA_INT, offset(id) + NEXT_SIBLING, sibling);
+    }
+}
@@ -0,0 +1,25 @@
+package A2Code;
+
+import problem.Action;
+
+/**
+ * The best action and its value for every packed state at every step of a
+ * race, worked out by Solver or loaded from disk by MappedPolicyTable.
+ */
+public interface PolicyTable {
+
+    /**
+     * ActionCatalog id of the best action in a packed state at a step
+     */
+    int policyId(long state, int step);
+
+    /**
+     * The best action in a packed state at a step
+     */
+    Action policy(long state, int step);
+
+    /**
+     * Expected reward at the end of the race from a packed state at a step
+     */
+    double value(long state, int step);
+}
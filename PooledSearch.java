@@ -0,0 +1,270 @@
+package A2Code;
+
+import problem.Action;
+import problem.ProblemSpec;
+
+/**
+ * The search from MCTS (sweeps over every root action, each followed by a
+ * default policy rollout that is added to the tree) run on a NodeStore
+ * rather than on StateNode and ActionNode objects.
+ *
+ * State nodes hold their packed state in the key column, action nodes hold
+ * their ActionCatalog id. Backups follow the path taken,
+ * so no parent links are stored. Single threaded.
+ */
+public class PooledSearch {
+
+    private final ProblemSpec ps;
+    private final Model model;
+    private final NodeStore store;
+    private final int depth;
+
+    private final ActionCatalog catalog;
+
+    // state and action node ids visited by the rollout in progress, action
+    // path[i] was taken from state statePath[i]
+    private final int[] path;
+    private final int[] statePath;
+
+    private int root;
+
+    /**
+     * @param model the Model of the problem spec
+     * @param store where to keep the tree
+     * @param depth number of moves in a rollout
+     */
+    public PooledSearch(Model model, NodeStore store, int depth) {
+        this.ps = model.getSpec();
+        this.model = model;
+        this.store = store;
+        this.depth = depth;
+        this.catalog = model.getCatalog();
+        this.path = new int[depth];
+        this.statePath = new int[depth];
+        this.root = NodeStore.NONE;
+    }
+
+    public NodeStore getStore() {
+        return store;
+    }
+
+    /**
+     * Throw away the tree and start a new one from the given state
+     *
+     * @return the id of the new root
+     */
+    public int reset(long state, int step) {
+        store.clear();
+        root = newStateNode(state, step);
+        expand(root);
+        return root;
+    }
+
+    /**
+     * Move the root down to the state reached by taking action from the
+     * current root, keeping the subtree already searched under it and
+     * freeing the rest of the store. If the state was never simulated the
+     * tree starts again from it.
+     *
+     * @return the id of the new root
+     */
+    public int advance(Action action, long state, int step) {
+        if (root == NodeStore.NONE) {
+            return reset(state, step);
+        }
+        int actionNode = getChild(root, catalog.id(action));
+        int next = actionNode == NodeStore.NONE ? NodeStore.NONE
+                : findStateChild(actionNode, state, step);
+        if (next == NodeStore.NONE) {
+            return reset(state, step);
+        }
+        root = store.compact(next);
+        return root;
+    }
+
+    /**
+     * Whether the current root is the given state
+     */
+    public boolean isRoot(long state, int step) {
+        return root != NodeStore.NONE && store.key(root) == state
+                && store.step(root) == step;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * Sum of the squared results behind an action node's Q(s, a)
+     */
+    public double sumSquares(int actionNode) {
+        return store.squares(actionNode);
+    }
+
+    /**
+     * The action an action node represents
+     */
+    public Action action(int actionNode) {
+        return catalog.action(actionId(actionNode));
+    }
+
+    /**
+     * The ActionCatalog id of the action an action node represents
+     */
+    public int actionId(int actionNode) {
+        return (int) store.key(actionNode);
+    }
+
+    /**
+     * Sweep over every action of the root until the deadline (or the sweep
+     * limit if > 0) is reached, checking the deadline before every action
+     *
+     * @param deadline System.nanoTime() to stop by, ignored with a sweep limit
+     * @return the number of simulations run
+     */
+    public long search(Symulator simon, long deadline, int sweepLimit) {
+        long rootState = store.key(root);
+        int rootStep = store.step(root);
+        if (store.firstChild(root) == NodeStore.NONE) {
+            expand(root);
+        }
+
+        long simulations = 0;
+        int sweeps = 0;
+        while (sweepLimit > 0 ? sweeps < sweepLimit
+                : System.nanoTime() - deadline < 0) {
+            sweeps++;
+            for (int a = store.firstChild(root); a != NodeStore.NONE;
+                 a = store.nextSibling(a)) {
+                if (sweepLimit == 0 && System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+                simon.resetPacked(rootState, rootStep);
+                long nextState = simon.stepPacked(action(a));
+                int child = stateChild(a, nextState, simon.getSteps());
+
+                rollout(child, simon);
+
+                update(a, store.value(child));
+                updateQ(root);
+                simulations++;
+            }
+        }
+        return simulations;
+    }
+
+    // rolls out from node with the default policy, adding the nodes to the
+    // tree and backing up along the way we came
+    private void rollout(int node, Symulator simon) {
+        int currentState = node;
+        int taken = 0;
+        while (!isTerminal(currentState) && taken < depth) {
+            int policy = model.defaultPolicyId(store.key(currentState));
+            if (store.firstChild(currentState) == NodeStore.NONE) {
+                expand(currentState);
+            }
+            int actionNode = getChild(currentState, policy);
+
+            long newState = simon.stepPacked(catalog.action(policy));
+            int newStateNode = stateChild(actionNode, newState, simon.getSteps());
+
+            statePath[taken] = currentState;
+            path[taken++] = actionNode;
+            currentState = newStateNode;
+        }
+
+        updateQ(currentState);
+        for (int i = taken - 1; i >= 0; i--) {
+            update(path[i], store.value(currentState));
+            currentState = statePath[i];
+            updateQ(currentState);
+        }
+    }
+
+    private boolean isTerminal(int node) {
+        return store.step(node) >= ps.getMaxT()
+                || StateCodec.pos(store.key(node)) == ps.getN();
+    }
+
+    private int newStateNode(long state, int step) {
+        int id = store.allocate();
+        store.setKey(id, state);
+        store.setStep(id, step);
+        store.setReward(id, model.reward(state, step));
+        store.setValue(id, store.reward(id));
+        return id;
+    }
+
+    // the state node under actionNode for reaching state at step, NONE if
+    // there isn't one
+    private int findStateChild(int actionNode, long state, int step) {
+        for (int c = store.firstChild(actionNode); c != NodeStore.NONE;
+             c = store.nextSibling(c)) {
+            if (store.key(c) == state && store.step(c) == step) {
+                return c;
+            }
+        }
+        return NodeStore.NONE;
+    }
+
+    // same as findStateChild() but adds a new state node if there isn't one
+    private int stateChild(int actionNode, long state, int step) {
+        int node = findStateChild(actionNode, state, step);
+        if (node == NodeStore.NONE) {
+            node = newStateNode(state, step);
+            addChild(actionNode, node);
+        }
+        return node;
+    }
+
+    // adds an action node under node for every available action, A1 first
+    private void expand(int node) {
+        int[] available = catalog.valid(store.key(node));
+        // children are pushed on the front so go backwards
+        for (int i = available.length - 1; i >= 0; i--) {
+            int a = store.allocate();
+            store.setKey(a, available[i]);
+            addChild(node, a);
+        }
+    }
+
+    private int getChild(int node, int id) {
+        for (int c = store.firstChild(node); c != NodeStore.NONE;
+             c = store.nextSibling(c)) {
+            if (store.key(c) == id) {
+                return c;
+            }
+        }
+        return NodeStore.NONE;
+    }
+
+    private void addChild(int parent, int child) {
+        store.setNextSibling(child, store.firstChild(parent));
+        store.setFirstChild(parent, child);
+    }
+
+    // Q(s,a) = (Q(s,a) * n + q) / n + 1, and the result's square added to
+    // the action node's sum of squares
+    private void update(int actionNode, double q) {
+        int n = store.visits(actionNode);
+        store.setValue(actionNode, (store.value(actionNode) * n + q) / (n + 1));
+        store.setVisits(actionNode, n + 1);
+        store.setSquares(actionNode, store.squares(actionNode) + q * q);
+    }
+
+    // same as StateNode.updateQ(), A1 is the first child and wins ties
+    private void updateQ(int node) {
+        store.setVisits(node, store.visits(node) + 1);
+        int a = store.firstChild(node);
+        if (a == NodeStore.NONE) {
+            store.setValue(node, store.reward(node));
+            return;
+        }
+        double best = store.value(a);
+        for (a = store.nextSibling(a); a != NodeStore.NONE;
+             a = store.nextSibling(a)) {
+            best = Math.max(best, store.value(a));
+        }
+        store.setValue(node, store.reward(node) + best);
+    }
+}
@@ -0,0 +1,235 @@
+package A2Code;
+
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import problem.Tire;
+import problem.TirePressure;
+
+import java.util.SplittableRandom;
+
+/**
+ * Informed default policy for rollouts, which costs a table lookup per step.
+ *
+ * For every TransitionKernel config (terrain, car, driver, tire, pressure)
+ * the expected number of steps it takes to cover one cell is worked out up
+ * front from the move distribution: slips and breakdowns cost their
+ * recovery time and gain nothing, and on levels that use fuel every move
+ * also costs a tenth of a step per unit of fuel for the refuelling it
+ * leads to. From those, each position gets the best action for each car,
+ * driver, tire and pressure: the change of setup that saves the most steps
+ * over the next LOOKAHEAD cells, counting the step the change takes, or
+ * MOVE if nothing saves any.
+ *
+ * On top of the table, a state without the fuel for its next move refuels
+ * whenever it can. When ADD_FUEL isn't offered (the tank is at least
+ * ADD_FUEL_BELOW) it takes the change that leaves the fuel for the move and
+ * covers the lookahead quickest, a new car comes with a full tank and lower
+ * pressure or fresh tires use less.
+ */
+public class RolloutPolicy {
+
+    // cells ahead a change of setup has to pay for itself over
+    private static final int LOOKAHEAD = 10;
+
+    // steps per cell for configs that don't go forward on average
+    private static final double STUCK = 1000.0;
+
+    // fuel below this can be topped up with ADD_FUEL, see ActionCatalog
+    private static final int ADD_FUEL_BELOW = 20;
+
+    private final ProblemSpec ps;
+    private final TransitionKernel kernel;
+    private final StateCodec codec;
+    private final ActionCatalog catalog;
+    private final boolean usesFuel;
+
+    // ActionCatalog id of ADD_FUEL, -1 below level 2
+    private final int addFuel;
+
+    // number of (car, driver, tire, pressure) setups, see
+    // TransitionKernel.configRest()
+    private final int setups;
+
+    // expected steps to cover a cell in each kernel config
+    private final double[] stepsPerCell;
+
+    // best action id for position pos and setup at [(pos - 1) * setups + setup]
+    private final int[] best;
+
+    /**
+     * Work out the policy for a model's spec, see Model.getRolloutPolicy()
+     *
+     * @param model the model, its kernel and catalog must already be set up
+     */
+    RolloutPolicy(Model model) {
+        this.ps = model.getSpec();
+        this.kernel = model.getKernel();
+        this.codec = model.getCodec();
+        this.catalog = model.getCatalog();
+        this.usesFuel = ps.getLevel().getLevelNumber() > 1;
+
+        int addFuelId = -1;
+        for (int id = 0; id < catalog.size(); id++) {
+            if (catalog.action(id).getActionType() == ActionType.ADD_FUEL) {
+                addFuelId = id;
+            }
+        }
+        this.addFuel = addFuelId;
+
+        int cars = ps.getCarOrder().size();
+        int drivers = ps.getDriverOrder().size();
+        int tires = Tire.values().length;
+        int pressures = TirePressure.values().length;
+        this.setups = cars * drivers * tires * pressures;
+
+        stepsPerCell = new double[ps.getNT() * setups];
+        double[] moveProbs = kernel.getMoveProbs();
+        for (int config = 0; config < stepsPerCell.length; config++) {
+            double distance = 0;
+            double steps = usesFuel ? kernel.getFuelConsumption(config) / 10.0
+                    : 0;
+            for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+                double p = moveProbs[config * ProblemSpec.CAR_MOVE_RANGE + k];
+                int move = ps.convertIndexIntoMove(k);
+                if (move == ProblemSpec.SLIP) {
+                    steps += p * ps.getSlipRecoveryTime();
+                } else if (move == ProblemSpec.BREAKDOWN) {
+                    steps += p * ps.getRepairTime();
+                } else {
+                    steps += p;
+                    distance += p * move;
+                }
+            }
+            stepsPerCell[config] = distance > 0
+                    ? Math.min(steps / distance, STUCK) : STUCK;
+        }
+
+        // try every change of setup from every position, the Symulator does
+        // the changing so the setups match what the race will do
+        best = new int[ps.getN() * setups];
+        Symulator simon = new Symulator(model, new SplittableRandom());
+        for (int pos = 1; pos < ps.getN(); pos++) {
+            for (int car = 0; car < cars; car++) {
+                for (int driver = 0; driver < drivers; driver++) {
+                    for (int tire = 0; tire < tires; tire++) {
+                        for (int p = 0; p < pressures; p++) {
+                            long state = StateCodec.pack(pos,
+                                    ProblemSpec.FUEL_MAX, car, driver, tire, p,
+                                    false, false);
+                            int setup = kernel.configRest(state);
+                            best[(pos - 1) * setups + setup] =
+                                    bestChange(simon, state);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // the action that saves the most steps over the lookahead from state,
+    // MOVE if none save any
+    private int bestChange(Symulator simon, long state) {
+        int pos = StateCodec.pos(state);
+        double current = lookahead(pos, kernel.configRest(state));
+        int res = ActionCatalog.MOVE;
+        double bestSaving = 0;
+        for (int id : catalog.valid(state)) {
+            if (id == ActionCatalog.MOVE || id == addFuel) {
+                continue;
+            }
+            simon.resetPacked(state, 0);
+            long next = simon.stepPacked(catalog.action(id));
+            double saving = current - simon.getSteps()
+                    - lookahead(pos, kernel.configRest(next));
+            if (saving > bestSaving) {
+                bestSaving = saving;
+                res = id;
+            }
+        }
+        return res;
+    }
+
+    // expected steps to cover the next LOOKAHEAD cells from pos with a setup
+    private double lookahead(int pos, int setup) {
+        double steps = 0;
+        int end = Math.min(ps.getN(), pos + LOOKAHEAD);
+        for (int p = pos; p < end; p++) {
+            steps += stepsPerCell[kernel.configAt(p, setup)];
+        }
+        return steps;
+    }
+
+    /**
+     * ActionCatalog id of the action to take in a packed state
+     */
+    public int actionId(long state) {
+        int pos = StateCodec.pos(state);
+        int setup = kernel.configRest(state);
+        if (usesFuel) {
+            int fuel = StateCodec.fuel(state);
+            if (fuel < kernel.getFuelConsumption(kernel.configAt(pos, setup))) {
+                return fuel < ADD_FUEL_BELOW ? addFuel : fuelChange(state);
+            }
+        }
+        return best[(pos - 1) * setups + setup];
+    }
+
+    // the valid change after which state has the fuel for its next move and
+    // covers the lookahead quickest, MOVE if no change gets there
+    private int fuelChange(long state) {
+        int pos = StateCodec.pos(state);
+        int res = ActionCatalog.MOVE;
+        double bestSteps = Double.MAX_VALUE;
+        for (int id : catalog.valid(state)) {
+            long next = change(state, catalog.action(id));
+            if (next == state) {
+                continue;
+            }
+            int setup = kernel.configRest(next);
+            if (StateCodec.fuel(next) < kernel.getFuelConsumption(
+                    kernel.configAt(pos, setup))) {
+                continue;
+            }
+            double steps = lookahead(pos, setup);
+            if (steps < bestSteps) {
+                bestSteps = steps;
+                res = id;
+            }
+        }
+        return res;
+    }
+
+    // the state after a one step change that can alter the fuel or the fuel
+    // used, as the Symulator makes it, state itself for any other action
+    private long change(long state, Action a) {
+        switch (a.getActionType()) {
+            case CHANGE_CAR:
+                return StateCodec.changeCarType(state,
+                        codec.carIndex(a.getCarType()));
+            case CHANGE_TIRES:
+                return StateCodec.changeTires(state,
+                        a.getTireModel().ordinal());
+            case CHANGE_PRESSURE:
+                return StateCodec.changeTirePressure(state,
+                        a.getTirePressure().ordinal());
+            case CHANGE_CAR_AND_DRIVER:
+                return StateCodec.changeCarAndDriver(state,
+                        codec.carIndex(a.getCarType()),
+                        codec.driverIndex(a.getDriverType()));
+            case CHANGE_TIRE_FUEL_PRESSURE:
+                return StateCodec.changeTireFuelAndTirePressure(state,
+                        a.getTireModel().ordinal(), a.getFuel(),
+                        a.getTirePressure().ordinal());
+            default:
+                return state;
+        }
+    }
+
+    /**
+     * Expected steps to cover a cell in a TransitionKernel config
+     */
+    public double stepsPerCell(int config) {
+        return stepsPerCell[config];
+    }
+}
@@ -0,0 +1,271 @@
+package A2Code;
+
+import problem.Action;
+import problem.ProblemSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves a ProblemSpec offline by backward induction over every packed
+ * state at every time step, which is small enough for most specs that the
+ * race needs no search at all.
+ *
+ * A state is worth the expected Model.reward of the state the race ends in,
+ * at the goal or out of time, under the best actions. Nothing counts as
+ * behind (see FROM), so the table holds whatever Model.n is set to. Unlike
+ * the search, the rewards along the way aren't added up: every step short
+ * of the goal earns 0.0001 * pos * stepsLeft, more than the 0.5 / maxT
+ * gained by finishing a step sooner, so an exact solution of the summed
+ * rewards stalls until time runs out. Transitions come from the Symulator itself,
+ * with each MOVE outcome weighted by the TransitionKernel's move
+ * distribution, so the solver plays by exactly the rules the search does.
+ *
+ * A step only depends on later steps, so steps are solved from maxT - 1
+ * down to 0, with the states of each step split between the workers. The
+ * value (a float) and best action (a byte ActionCatalog id) of every state
+ * at every step are kept, so policy() is an array lookup.
+ */
+public class Solver implements PolicyTable {
+
+    // pieces of work each step is split into per worker, so a worker that
+    // finishes early can pick up more
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    // value and policy bytes per state per step
+    private static final int BYTES_PER_STATE = Float.BYTES + Byte.BYTES;
+
+    // position the rewards of a table are taken from, the start, which no
+    // state is behind
+    static final int FROM = 1;
+
+    private final ProblemSpec ps;
+    private final Model model;
+    private final TransitionKernel kernel;
+    private final ActionCatalog catalog;
+
+    private final StateIndex index;
+
+    // move distance (or SLIP/BREAKDOWN) of each index in a move distribution
+    private final int[] moveOfIndex;
+
+    // number of states at each step, see StateIndex
+    private final int statesPerStep;
+
+    // value and best action id of every state at every step before maxT,
+    // filled in by solve()
+    private final float[][] values;
+    private final byte[][] policy;
+
+    private boolean solved;
+
+    /**
+     * @param model the Model of the problem spec
+     * @throws IllegalStateException if the tables wouldn't fit in the heap
+     */
+    public Solver(Model model) {
+        this.ps = model.getSpec();
+        this.model = model;
+        this.kernel = model.getKernel();
+        this.catalog = model.getCatalog();
+        this.index = new StateIndex(ps);
+
+        moveOfIndex = new int[ProblemSpec.CAR_MOVE_RANGE];
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            moveOfIndex[k] = ps.convertIndexIntoMove(k);
+        }
+
+        if (catalog.size() > 256) {
+            throw new IllegalStateException(catalog.size()
+                    + " actions don't fit the policy table");
+        }
+        long bytes = tableBytes(ps);
+        if (bytes > Runtime.getRuntime().maxMemory() / 2) {
+            throw new IllegalStateException("Solving needs "
+                    + bytes / (1024 * 1024) + "MB of tables, more than half "
+                    + "the heap");
+        }
+
+        statesPerStep = index.size();
+        values = new float[ps.getMaxT()][];
+        policy = new byte[ps.getMaxT()][];
+    }
+
+    /**
+     * Memory the value and policy tables for a spec take
+     */
+    public static long tableBytes(ProblemSpec ps) {
+        return (long) new StateIndex(ps).size() * ps.getMaxT()
+                * BYTES_PER_STATE;
+    }
+
+    /**
+     * Fill in the tables. Rewards are taken from the model as it is now, so
+     * solve before the race moves its n.
+     *
+     * @param workers number of threads to solve each step with
+     */
+    public void solve(int workers) {
+        workers = Math.max(1, workers);
+        int chunks = workers * CHUNKS_PER_WORKER;
+        int chunkSize = (statesPerStep + chunks - 1) / chunks;
+        Symulator[] sims = new Symulator[chunks];
+        for (int c = 0; c < chunks; c++) {
+            sims[c] = new Symulator(model, new SplittableRandom());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "solver-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int step = ps.getMaxT() - 1; step >= 0; step--) {
+                values[step] = new float[statesPerStep];
+                policy[step] = new byte[statesPerStep];
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int c = 0; c < chunks; c++) {
+                    Symulator simon = sims[c];
+                    int t = step;
+                    int from = c * chunkSize;
+                    int to = Math.min(statesPerStep, from + chunkSize);
+                    tasks.add(() -> {
+                        solveStates(simon, t, from, to);
+                        return null;
+                    });
+                }
+                for (Future<Void> f : pool.invokeAll(tasks)) {
+                    f.get();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Solving failed", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        solved = true;
+    }
+
+    // solves states [from, to) of a step, every later step is already solved
+    private void solveStates(Symulator simon, int step, int from, int to) {
+        double[] moveProbs = kernel.getMoveProbs();
+        float[] stepValues = values[step];
+        byte[] stepPolicy = policy[step];
+        for (int i = from; i < to; i++) {
+            long state = index.state(i);
+            if (StateCodec.pos(state) == ps.getN()) {
+                stepValues[i] = (float) finalReward(model, state, step);
+                continue;
+            }
+
+            // ties go to the lowest id, MOVE first, like StateNode.updateQ()
+            int best = ActionCatalog.MOVE;
+            double bestQ = Double.NEGATIVE_INFINITY;
+            for (int id : catalog.valid(state)) {
+                double q = 0;
+                if (id == ActionCatalog.MOVE) {
+                    int offset = kernel.config(state) * ProblemSpec.CAR_MOVE_RANGE;
+                    for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+                        double p = moveProbs[offset + k];
+                        if (p > 0) {
+                            simon.resetPacked(state, step);
+                            long next = simon.stepMove(moveOfIndex[k]);
+                            q += p * valueAfter(next, simon.getSteps());
+                        }
+                    }
+                } else {
+                    simon.resetPacked(state, step);
+                    long next = simon.stepPacked(catalog.action(id));
+                    q = valueAfter(next, simon.getSteps());
+                }
+                if (q > bestQ) {
+                    bestQ = q;
+                    best = id;
+                }
+            }
+            stepValues[i] = (float) bestQ;
+            stepPolicy[i] = (byte) best;
+        }
+    }
+
+    // value of arriving in state at step, its reward if the race is over
+    private double valueAfter(long state, int step) {
+        if (step >= ps.getMaxT() || StateCodec.pos(state) == ps.getN()) {
+            return finalReward(model, state, step);
+        }
+        return values[step][index.index(state)];
+    }
+
+    // reward of a race that ends in state at step, for solved tables
+    static double finalReward(Model model, long state, int step) {
+        return model.reward(FROM, StateCodec.pos(state), step);
+    }
+
+    public boolean isSolved() {
+        return solved;
+    }
+
+    public int getStatesPerStep() {
+        return statesPerStep;
+    }
+
+    /**
+     * The solved values of every state at a step, indexed by StateIndex
+     */
+    public float[] getValues(int step) {
+        return values[step];
+    }
+
+    /**
+     * The solved best action ids of every state at a step, indexed by
+     * StateIndex
+     */
+    public byte[] getPolicy(int step) {
+        return policy[step];
+    }
+
+    /**
+     * ActionCatalog id of the best action in a packed state at a step, MOVE
+     * once there is nothing left to decide
+     *
+     * @throws IllegalStateException if solve() hasn't been run
+     */
+    @Override
+    public int policyId(long state, int step) {
+        if (!solved) {
+            throw new IllegalStateException("Not solved yet");
+        }
+        if (step >= ps.getMaxT()) {
+            return ActionCatalog.MOVE;
+        }
+        return policy[step][index.index(state)] & 0xFF;
+    }
+
+    /**
+     * The best action in a packed state at a step
+     */
+    @Override
+    public Action policy(long state, int step) {
+        return catalog.action(policyId(state, step));
+    }
+
+    /**
+     * Expected reward at the end of the race from a packed state at a step
+     * when following policy()
+     *
+     * @throws IllegalStateException if solve() hasn't been run
+     */
+    @Override
+    public double value(long state, int step) {
+        if (!solved) {
+            throw new IllegalStateException("Not solved yet");
+        }
+        return valueAfter(state, step);
+    }
+}
@@ -0,0 +1,277 @@
+package A2Code;
+
+import problem.ProblemSpec;
+import problem.Tire;
+import problem.TirePressure;
+import simulator.State;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Packs a simulator.State into a single long so the search can work on
+ * primitives instead of allocating a new State for every step.
+ *
+ * Only the low 32 bits are used, leaving the high 32 bits free for the time
+ * step in a node key (see nodeKey()):
+ *
+ *   bits  0-11 position (1 to N)
+ *   bits 12-17 fuel
+ *   bits 18-21 car index in ps.getCarOrder()
+ *   bits 22-25 driver index in ps.getDriverOrder()
+ *   bits 26-27 tire (Tire ordinal)
+ *   bits 28-29 tire pressure (TirePressure ordinal)
+ *   bit  30    in slip condition
+ *   bit  31    in breakdown condition
+ *
+ * The static methods read and change single fields of a packed state and
+ * mirror the transitions of simulator.State. An instance is only needed to
+ * convert to and from simulator.State, which needs the spec's car and
+ * driver names.
+ */
+public class StateCodec {
+
+    private static final int POS_SHIFT = 0;
+    private static final int FUEL_SHIFT = 12;
+    private static final int CAR_SHIFT = 18;
+    private static final int DRIVER_SHIFT = 22;
+    private static final int TIRE_SHIFT = 26;
+    private static final int PRESSURE_SHIFT = 28;
+    private static final int SLIP_SHIFT = 30;
+    private static final int BREAKDOWN_SHIFT = 31;
+
+    private static final long POS_MASK = 0xFFFL;
+    private static final long FUEL_MASK = 0x3FL;
+    private static final long CAR_MASK = 0xFL;
+    private static final long DRIVER_MASK = 0xFL;
+    private static final long TIRE_MASK = 0x3L;
+    private static final long PRESSURE_MASK = 0x3L;
+
+    private static final int FULL_PRESSURE =
+            TirePressure.ONE_HUNDRED_PERCENT.ordinal();
+
+    private final ProblemSpec ps;
+    private final List<String> cars;
+    private final List<String> drivers;
+    private final HashMap<String, Integer> carIndex;
+    private final HashMap<String, Integer> driverIndex;
+
+    /**
+     * @param ps the ProblemSpec
+     * @throws IllegalArgumentException if its states don't fit in a long
+     */
+    public StateCodec(ProblemSpec ps) {
+        if (ps.getN() > POS_MASK || ps.getCarOrder().size() > CAR_MASK + 1
+                || ps.getDriverOrder().size() > DRIVER_MASK + 1) {
+            throw new IllegalArgumentException("Problem is too large to pack "
+                    + "states into a long");
+        }
+        this.ps = ps;
+        this.cars = ps.getCarOrder();
+        this.drivers = ps.getDriverOrder();
+        this.carIndex = new HashMap<>();
+        for (int i = 0; i < cars.size(); i++) {
+            carIndex.put(cars.get(i), i);
+        }
+        this.driverIndex = new HashMap<>();
+        for (int i = 0; i < drivers.size(); i++) {
+            driverIndex.put(drivers.get(i), i);
+        }
+    }
+
+    /**
+     * Pack a simulator.State
+     */
+    public long encode(State state) {
+        return pack(state.getPos(), state.getFuel(),
+                carIndex.get(state.getCarType()),
+                driverIndex.get(state.getDriver()),
+                state.getTireModel().ordinal(),
+                state.getTirePressure().ordinal(),
+                state.isInSlipCondition(), state.isInBreakdownCondition());
+    }
+
+    /**
+     * Build the simulator.State for a packed state, only for talking to the
+     * real Simulator and printing
+     */
+    public State decode(long state) {
+        State res = State.getStartState(carName(state), driverName(state),
+                tireOf(state));
+        res = res.changePosition(pos(state) - 1, ps.getN());
+        res = res.consumeFuel(ProblemSpec.FUEL_MAX - fuel(state));
+        res = res.changeTirePressure(pressureOf(state));
+        if (isInSlipCondition(state)) {
+            res = res.changeSlipCondition(true);
+        }
+        if (isInBreakdownCondition(state)) {
+            res = res.changeBreakdownCondition(true);
+        }
+        return res;
+    }
+
+    /**
+     * Readable form of a packed state, same as the decoded State's toString()
+     */
+    public String toString(long state) {
+        return decode(state).toString();
+    }
+
+    public int carIndex(String car) {
+        return carIndex.get(car);
+    }
+
+    public int driverIndex(String driver) {
+        return driverIndex.get(driver);
+    }
+
+    public String carName(long state) {
+        return cars.get(car(state));
+    }
+
+    public String driverName(long state) {
+        return drivers.get(driver(state));
+    }
+
+    /**
+     * Key for a state reached at a given time step, two StateNodes with the
+     * same key represent the same point in the search
+     */
+    public static long nodeKey(long state, int step) {
+        return ((long) step << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The packed state of a node key
+     */
+    public static long keyState(long key) {
+        return key & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The time step of a node key
+     */
+    public static int keyStep(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Pack the given fields
+     */
+    public static long pack(int pos, int fuel, int car, int driver, int tire,
+                            int pressure, boolean slip, boolean breakdown) {
+        return ((long) pos << POS_SHIFT)
+                | ((long) fuel << FUEL_SHIFT)
+                | ((long) car << CAR_SHIFT)
+                | ((long) driver << DRIVER_SHIFT)
+                | ((long) tire << TIRE_SHIFT)
+                | ((long) pressure << PRESSURE_SHIFT)
+                | (slip ? 1L << SLIP_SHIFT : 0L)
+                | (breakdown ? 1L << BREAKDOWN_SHIFT : 0L);
+    }
+
+    public static int pos(long state) {
+        return (int) ((state >>> POS_SHIFT) & POS_MASK);
+    }
+
+    public static int fuel(long state) {
+        return (int) ((state >>> FUEL_SHIFT) & FUEL_MASK);
+    }
+
+    public static int car(long state) {
+        return (int) ((state >>> CAR_SHIFT) & CAR_MASK);
+    }
+
+    public static int driver(long state) {
+        return (int) ((state >>> DRIVER_SHIFT) & DRIVER_MASK);
+    }
+
+    public static int tire(long state) {
+        return (int) ((state >>> TIRE_SHIFT) & TIRE_MASK);
+    }
+
+    public static Tire tireOf(long state) {
+        return Tire.values()[tire(state)];
+    }
+
+    public static int pressure(long state) {
+        return (int) ((state >>> PRESSURE_SHIFT) & PRESSURE_MASK);
+    }
+
+    public static TirePressure pressureOf(long state) {
+        return TirePressure.values()[pressure(state)];
+    }
+
+    public static boolean isInSlipCondition(long state) {
+        return ((state >>> SLIP_SHIFT) & 1L) != 0;
+    }
+
+    public static boolean isInBreakdownCondition(long state) {
+        return ((state >>> BREAKDOWN_SHIFT) & 1L) != 0;
+    }
+
+    private static long with(long state, int shift, long mask, long value) {
+        return (state & ~(mask << shift)) | ((value & mask) << shift);
+    }
+
+    public static long changeSlipCondition(long state, boolean slip) {
+        return with(state, SLIP_SHIFT, 1L, slip ? 1 : 0);
+    }
+
+    public static long changeBreakdownCondition(long state, boolean breakdown) {
+        return with(state, BREAKDOWN_SHIFT, 1L, breakdown ? 1 : 0);
+    }
+
+    /**
+     * Move by the given distance, staying between 1 and N
+     */
+    public static long changePosition(long state, int move, int n) {
+        int pos = Math.min(Math.max(pos(state) + move, 1), n);
+        return with(state, POS_SHIFT, POS_MASK, pos);
+    }
+
+    public static long consumeFuel(long state, int fuel) {
+        return with(state, FUEL_SHIFT, FUEL_MASK, Math.max(fuel(state) - fuel, 0));
+    }
+
+    public static long addFuel(long state, int fuel) {
+        return with(state, FUEL_SHIFT, FUEL_MASK,
+                Math.min(fuel(state) + fuel, ProblemSpec.FUEL_MAX));
+    }
+
+    /**
+     * New car comes with a full tank and full tire pressure
+     */
+    public static long changeCarType(long state, int car) {
+        state = with(state, CAR_SHIFT, CAR_MASK, car);
+        state = with(state, FUEL_SHIFT, FUEL_MASK, ProblemSpec.FUEL_MAX);
+        return with(state, PRESSURE_SHIFT, PRESSURE_MASK, FULL_PRESSURE);
+    }
+
+    public static long changeDriver(long state, int driver) {
+        return with(state, DRIVER_SHIFT, DRIVER_MASK, driver);
+    }
+
+    /**
+     * New tires come at full pressure
+     */
+    public static long changeTires(long state, int tire) {
+        state = with(state, TIRE_SHIFT, TIRE_MASK, tire);
+        return with(state, PRESSURE_SHIFT, PRESSURE_MASK, FULL_PRESSURE);
+    }
+
+    public static long changeTirePressure(long state, int pressure) {
+        return with(state, PRESSURE_SHIFT, PRESSURE_MASK, pressure);
+    }
+
+    public static long changeCarAndDriver(long state, int car, int driver) {
+        return changeDriver(changeCarType(state, car), driver);
+    }
+
+    public static long changeTireFuelAndTirePressure(long state, int tire,
+                                                     int fuel, int pressure) {
+        state = with(state, TIRE_SHIFT, TIRE_MASK, tire);
+        state = addFuel(state, fuel);
+        return with(state, PRESSURE_SHIFT, PRESSURE_MASK, pressure);
+    }
+}
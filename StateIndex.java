@@ -0,0 +1,67 @@
+package A2Code;
+
+import problem.ProblemSpec;
+import problem.Tire;
+import problem.TirePressure;
+
+/**
+ * Numbers every packed state of a ProblemSpec (position, fuel, car, driver,
+ * tire and pressure) from 0 to size() - 1, for tables with an entry per
+ * state. Slip and breakdown never last past a step so they aren't part of
+ * the index.
+ */
+public class StateIndex {
+
+    private final int numPositions;
+    private final int numFuels;
+    private final int numCars;
+    private final int numDrivers;
+    private final int numTires;
+    private final int numPressures;
+
+    public StateIndex(ProblemSpec ps) {
+        this.numPositions = ps.getN();
+        this.numFuels = ProblemSpec.FUEL_MAX + 1;
+        this.numCars = ps.getCarOrder().size();
+        this.numDrivers = ps.getDriverOrder().size();
+        this.numTires = Tire.values().length;
+        this.numPressures = TirePressure.values().length;
+    }
+
+    /**
+     * Number of states
+     */
+    public int size() {
+        return numPositions * numFuels * numCars * numDrivers * numTires
+                * numPressures;
+    }
+
+    /**
+     * Index of a packed state
+     */
+    public int index(long state) {
+        int i = (StateCodec.pos(state) - 1) * numFuels + StateCodec.fuel(state);
+        i = (i * numCars + StateCodec.car(state)) * numDrivers
+                + StateCodec.driver(state);
+        return (i * numTires + StateCodec.tire(state)) * numPressures
+                + StateCodec.pressure(state);
+    }
+
+    /**
+     * The packed state at an index, the inverse of index()
+     */
+    public long state(int index) {
+        int pressure = index % numPressures;
+        index /= numPressures;
+        int tire = index % numTires;
+        index /= numTires;
+        int driver = index % numDrivers;
+        index /= numDrivers;
+        int car = index % numCars;
+        index /= numCars;
+        int fuel = index % numFuels;
+        int pos = index / numFuels + 1;
+        return StateCodec.pack(pos, fuel, car, driver, tire, pressure, false,
+                false);
+    }
+}
@@ -1,19 +1,23 @@
 package A2Code;
 
-import problem.Action;
-import simulator.State;
-
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
- * StateNode for MCTS, each StateNode contains a state (immutable).
+ * StateNode for MCTS, each StateNode contains a state packed by StateCodec.
+ *
+ * Safe to share between search threads, the children are only ever
+ * published with a compare and set and the cached values are only ever
+ * written whole.
  */
 public class StateNode {
-    // the state this StateNode represents
-    public State state;
+
+    private static final AtomicReferenceFieldUpdater<StateNode, ActionNode[]>
+            CHILDREN = AtomicReferenceFieldUpdater.newUpdater(StateNode.class,
+            ActionNode[].class, "children");
+
+    // the state this StateNode represents, packed by StateCodec
+    public long state;
 
     // time step at which this state was reached
     public int step;
@@ -22,48 +26,138 @@ public class StateNode {
     public ActionNode parent;
 
     // true if this StateNode's children have been generate
-    public boolean hasActions;
+    public volatile boolean hasActions;
+
+    // the actions performed after this state that have ActionNodes so far,
+    // MOVE first. Without action widening that is every valid action, in
+    // ActionCatalog id order. With it they are added in id order as the
+    // node is visited, plus any the default policy takes on the way. Only
+    // ever replaced by a longer copy that starts with the same nodes
+    public volatile ActionNode[] children;
 
-    // the actions performed after this state
-    public Hashtable<String, ActionNode> children;
+    // number of valid actions in this state, set along with children
+    public volatile int actions;
 
-    // the reward from this state (Model.reward(this))
+    // the reward from this state (Model.reward(this)) when it was created
     public double reward;
 
     // this StateNode's ActionNode with the greatest expected future value
-    public ActionNode argmaxQ;
+    public volatile ActionNode argmaxQ;
+
+    // MCTS clock when a search last passed through this node, used to pick
+    // nodes to evict. Written without synchronisation, it is only a hint
+    public long lastUsed;
 
     // the greatest expected future value of all ActionNodes in this state
-    public double averageExpectedValue;
+    public volatile double averageExpectedValue;
     // = reward(this) + Q(s,a)
     // = reward plus Q(s,a) of this state's best performing action
 
-    public StateNode(State s, int step) {
+    public StateNode(Model model, long s, int step) {
         this.state = s;
         this.step = step;
         this.parent = null;
         this.hasActions = false;
         this.children = null;
+        this.actions = 0;
         this.argmaxQ = null;
         this.averageExpectedValue = 0.0;
-        this.reward = Model.reward(this.state, this.step);
+        this.lastUsed = 0;
+        this.reward = model.reward(StateCodec.pos(this.state), this.step);
     }
 
-    public void generateActionNodes(List<Action> actions) {
-        if (hasActions) {
-            return;
+    /**
+     * Generates an ActionNode for every valid action that doesn't have one
+     *
+     * @return the number of ActionNodes this call added
+     */
+    public int generateActionNodes(ActionCatalog catalog) {
+        return generateActionNodes(catalog, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Makes sure at least count of the valid actions (all of them if there
+     * are fewer) have ActionNodes, adding the missing ones in ActionCatalog
+     * id order
+     *
+     * @return the number of ActionNodes this call added
+     */
+    public int generateActionNodes(ActionCatalog catalog, int count) {
+        int[] ids = catalog.valid(state);
+        int want = Math.min(count, ids.length);
+        while (true) {
+            ActionNode[] c = children;
+            int have = c == null ? 0 : c.length;
+            if (have >= want && c != null) {
+                return 0;
+            }
+            ActionNode[] grown = c == null ? new ActionNode[want]
+                    : Arrays.copyOf(c, want);
+            int added = have;
+            for (int i = 0; added < want; i++) {
+                if (indexOf(c, ids[i]) < 0) {
+                    grown[added++] = newChild(catalog, ids[i]);
+                }
+            }
+            // if another thread changed them first go again on theirs
+            if (CHILDREN.compareAndSet(this, c, grown)) {
+                actions = ids.length;
+                hasActions = true;
+                return want - have;
+            }
         }
-        children = new Hashtable<String, ActionNode>();
-        for (Action a : actions) {
-            ActionNode tmp = new ActionNode(a);
-            tmp.parent = this;
-            children.put(a.getText(), tmp);
+    }
+
+    /**
+     * Adds an ActionNode for a valid action id if it doesn't have one yet,
+     * after the ones already there
+     *
+     * @return true if this call added it
+     */
+    public boolean addActionNode(ActionCatalog catalog, int id) {
+        while (true) {
+            ActionNode[] c = children;
+            if (indexOf(c, id) >= 0) {
+                return false;
+            }
+            int have = c == null ? 0 : c.length;
+            ActionNode[] grown = c == null ? new ActionNode[1]
+                    : Arrays.copyOf(c, have + 1);
+            grown[have] = newChild(catalog, id);
+            if (CHILDREN.compareAndSet(this, c, grown)) {
+                actions = catalog.valid(state).length;
+                hasActions = true;
+                return true;
+            }
+        }
+    }
+
+    private ActionNode newChild(ActionCatalog catalog, int id) {
+        ActionNode child = new ActionNode(id, catalog.action(id));
+        child.parent = this;
+        return child;
+    }
+
+    // index of the child for an id in c, -1 if there isn't one
+    private static int indexOf(ActionNode[] c, int id) {
+        if (c != null) {
+            for (int i = 0; i < c.length; i++) {
+                if (c[i].id == id) {
+                    return i;
+                }
+            }
         }
-        hasActions = true;
+        return -1;
     }
 
-    public ActionNode getChild(Action a) {
-        return children.get(a.getText());
+    /**
+     * The child for an ActionCatalog id, null if the action isn't valid here
+     * or has no ActionNode yet
+     */
+    public ActionNode getChild(int id) {
+        ActionNode[] c = children;
+        int i = indexOf(c, id);
+        return i < 0 ? null : c[i];
     }
 
     /**
@@ -71,18 +165,21 @@ public class StateNode {
      * back-propagating.
      */
     public void updateQ() {
-        this.averageExpectedValue = reward;
         if (!hasActions) {
+            this.averageExpectedValue = reward;
             return;
         }
-        double best = children.get("A1").averageExpectedValue;
-        argmaxQ = children.get("A1"); // always move if it is equal best option
-        for (Map.Entry<String, ActionNode> e : children.entrySet()) {
-            if (e.getValue().averageExpectedValue > best) {
-                best = e.getValue().averageExpectedValue;
-                argmaxQ = e.getValue();
+        ActionNode[] c = children;
+        ActionNode bestNode = c[0]; // always move if it is equal best option
+        double best = bestNode.getAverageExpectedValue();
+        for (int i = 1; i < c.length; i++) {
+            double q = c[i].getAverageExpectedValue();
+            if (q > best) {
+                best = q;
+                bestNode = c[i];
             }
         }
+        argmaxQ = bestNode;
         this.averageExpectedValue = reward + best;
     }
 }
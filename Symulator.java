@@ -7,6 +7,7 @@ import simulator.Step;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * Proprietary simulator 'Symulator' which allows for simulations from any
@@ -18,10 +19,30 @@ import java.util.List;
  */
 public class Symulator {
 
+    /** Returned by stepPacked() in place of a state once time has run out **/
+    public static final long NO_STATE = -1L;
+
+    // move distance meaning a MOVE's outcome should be sampled
+    private static final int SAMPLE_MOVE = Integer.MIN_VALUE;
+
     /** Problem spec for the current problem **/
     private ProblemSpec ps;
-    /** The current state of the environment **/
-    private State currentState;
+    /** The Model of ps, shared with the search **/
+    private Model model;
+    /** Move probabilities and fuel usage compiled for ps **/
+    private TransitionKernel kernel;
+    /** The MOVE action, for stepMove() **/
+    private Action moveAction;
+    /** Action types valid for ps's level, by ordinal, looked up once **/
+    private boolean[] validTypes;
+    /** Source of randomness for this simulator, not shared between threads **/
+    private SplittableRandom rng;
+    /** Lockstep rollout engine sharing rng, created on first use **/
+    private BatchRollout batch;
+    /** Converts between packed states and simulator.State **/
+    private StateCodec codec;
+    /** The current state of the environment, packed by StateCodec **/
+    private long currentState;
     /** The number of steps taken **/
     private int steps;
     /** Whether to print progress messages or not
@@ -36,10 +57,41 @@ public class Symulator {
      * @param ps the ProblemSpec
      */
     public Symulator(ProblemSpec ps) {
-        this.ps = ps;
+        this(new Model(ps), new SplittableRandom());
+    }
+
+    /**
+     * Construct a new simulator instance for a model's problem spec that
+     * draws all of its randomness from rng. Give each thread its own stream
+     * (e.g. with rng.split()) as SplittableRandom is not thread safe.
+     *
+     * @param model the Model of the problem spec
+     * @param rng the random number generator to use
+     */
+    public Symulator(Model model, SplittableRandom rng) {
+        this.model = model;
+        this.ps = model.getSpec();
+        this.kernel = model.getKernel();
+        this.codec = model.getCodec();
+        this.moveAction = new Action(ActionType.MOVE);
+        this.validTypes = new boolean[ActionType.values().length];
+        for (ActionType type : ps.getLevel().getAvailableActions()) {
+            validTypes[type.ordinal()] = true;
+        }
+        this.rng = rng;
         reset();
     }
 
+    /**
+     * Create a new simulator for the same problem with its own random stream
+     * split off this one's, for handing to another thread.
+     *
+     * @return the new simulator
+     */
+    public Symulator split() {
+        return new Symulator(model, rng.split());
+    }
+
     /**
      * Reset the simulator and return initial state
      *  - Creates Symulator from initial state
@@ -48,13 +100,13 @@ public class Symulator {
      */
     public State reset() {
         steps = 0;
-        currentState = State.getStartState(ps.getFirstCarType(),
-                ps.getFirstDriver(), ps.getFirstTireModel());
+        currentState = codec.encode(State.getStartState(ps.getFirstCarType(),
+                ps.getFirstDriver(), ps.getFirstTireModel()));
         if (verbose) {
             System.out.println("Resetting simulator");
-            System.out.println("Start " + currentState.toString());
+            System.out.println("Start " + codec.toString(currentState));
         }
-        return currentState.copyState();
+        return codec.decode(currentState);
     }
 
     /**
@@ -66,13 +118,45 @@ public class Symulator {
      * later)
      */
     public State reset(State state, int steps) {
+        resetPacked(codec.encode(state), steps);
+        return state.copyState();
+    }
+
+    /**
+     * Reset the simulator to the given packed state (see StateCodec).
+     * Requires passing the number of steps taken to reach the given state also
+     *
+     * @return the start state
+     */
+    public long resetPacked(long state, int steps) {
         this.steps = steps;
         currentState = state;
         if (verbose) {
             System.out.println("Resetting simulator");
-            System.out.println("Start " + currentState.toString());
+            System.out.println("Start " + codec.toString(currentState));
         }
-        return currentState.copyState();
+        return currentState;
+    }
+
+    /**
+     * Save the current state and step count, to go back to with restore().
+     * Lets a caller branch several simulations off one point without
+     * keeping track of either itself.
+     *
+     * @return the saved point, a node key (see StateCodec.nodeKey())
+     */
+    public long save() {
+        return StateCodec.nodeKey(currentState, steps);
+    }
+
+    /**
+     * Go back to a point returned by save()
+     *
+     * @param saved the saved point
+     */
+    public void restore(long saved) {
+        currentState = StateCodec.keyState(saved);
+        steps = StateCodec.keyStep(saved);
     }
 
     /**
@@ -82,8 +166,39 @@ public class Symulator {
      * @return the next state or null if max time steps exceeded for problem
      */
     public State step(Action a) throws IllegalArgumentException {
+        long nextState = stepPacked(a);
+        return nextState == NO_STATE ? null : codec.decode(nextState);
+    }
 
-        State nextState;
+    /**
+     * Perform an action against environment and receive the next packed
+     * state (see StateCodec). Allocates nothing.
+     *
+     * @param a the action to perform
+     * @return the next state or NO_STATE if max time steps exceeded for problem
+     */
+    public long stepPacked(Action a) throws IllegalArgumentException {
+        return stepPacked(a, SAMPLE_MOVE);
+    }
+
+    /**
+     * Perform MOVE with the given outcome instead of sampling one, for
+     * replaying a move or working through every outcome of one. The step
+     * count and fuel change exactly as for a sampled move.
+     *
+     * @param moveDistance the move distance in range [-4, 5] or SLIP or
+     *                     BREAKDOWN
+     * @return the next state or NO_STATE if max time steps exceeded for problem
+     */
+    public long stepMove(int moveDistance) {
+        return stepPacked(moveAction, moveDistance);
+    }
+
+    // stepPacked() with the outcome of a MOVE given, or sampled if it is
+    // SAMPLE_MOVE
+    private long stepPacked(Action a, int moveDistance) {
+
+        long nextState;
 
         if (!actionValidForLevel(a)) {
             throw new IllegalArgumentException("ActionType A"
@@ -97,7 +212,7 @@ public class Symulator {
                 System.out.println("Max time steps exceeded: " + steps + " > "
                         + ps.getMaxT());
             }
-            return null;
+            return NO_STATE;
         }
 
         if (verbose) {
@@ -107,7 +222,7 @@ public class Symulator {
 
         switch(a.getActionType().getActionNo()) {
             case 1:
-                nextState = performA1();
+                nextState = performA1(moveDistance);
                 break;
             case 2:
                 nextState = performA2(a);
@@ -133,21 +248,21 @@ public class Symulator {
 
         // handle slip and breakdown cases, we do this now so we can generate
         // correct output format
-        if (nextState.isInSlipCondition()) {
+        if (StateCodec.isInSlipCondition(nextState)) {
             // remain in same state but certain number of steps pass
             // -1 since we add 1 later
             steps += ps.getSlipRecoveryTime() - 1;
-            nextState = nextState.changeSlipCondition(false);
-        } else if (nextState.isInBreakdownCondition()) {
+            nextState = StateCodec.changeSlipCondition(nextState, false);
+        } else if (StateCodec.isInBreakdownCondition(nextState)) {
             steps += ps.getRepairTime() - 1;
-            nextState = nextState.changeBreakdownCondition(false);
+            nextState = StateCodec.changeBreakdownCondition(nextState, false);
         }
 
         steps += 1;
-        currentState = nextState.copyState();
+        currentState = nextState;
 
         if (verbose) {
-            System.out.println("\tNext " + nextState.toString());
+            System.out.println("\tNext " + codec.toString(nextState));
         }
 
         if (isGoalState(nextState)) {
@@ -159,6 +274,36 @@ public class Symulator {
         return nextState;
     }
 
+    /**
+     * Roll out the default policy from the current state in a batch of
+     * lockstep lanes, see BatchRollout. The simulator's own state is left
+     * unchanged.
+     *
+     * @param lanes number of rollouts
+     * @param depth maximum number of moves per rollout
+     * @return the sum of rewards seen by each rollout, reused by the next call
+     */
+    public double[] rolloutBatch(int lanes, int depth) {
+        return batch(lanes).run(currentState, steps, depth);
+    }
+
+    /**
+     * rolloutBatch() that stops the rollouts at a deadline
+     *
+     * @param deadline System.nanoTime() to stop by
+     */
+    public double[] rolloutBatch(int lanes, int depth, long deadline) {
+        return batch(lanes).run(currentState, steps, depth, deadline);
+    }
+
+    // the lockstep engine, made again if the number of lanes changed
+    private BatchRollout batch(int lanes) {
+        if (batch == null || batch.getLanes() != lanes) {
+            batch = new BatchRollout(model, lanes, rng);
+        }
+        return batch;
+    }
+
     /**
      * Checks if given action is valid for the current problem level
      *
@@ -166,49 +311,54 @@ public class Symulator {
      * @return True if action is value, False otherwise
      */
     private boolean actionValidForLevel(Action a) {
-        return ps.getLevel().isValidActionForLevel(a.getActionType());
+        return validTypes[a.getActionType().ordinal()];
     }
 
     /**
      * Perform CONTINUE_MOVING action
      *
+     * @param moveDistance the outcome of the move, or SAMPLE_MOVE to sample it
      * @return the next state
      */
-    private State performA1() {
+    private long performA1(int moveDistance) {
 
-        State nextState;
+        long nextState;
 
         // check there is enough fuel to make move in current state
-        int fuelRequired = getFuelConsumption();
-        int currentFuel = currentState.getFuel();
+        int config = kernel.config(currentState);
+        int fuelRequired = kernel.getFuelConsumption(config);
+        int currentFuel = StateCodec.fuel(currentState);
         if (fuelRequired > currentFuel) {
             return currentState;
         }
 
         // Sample move distance
-        int moveDistance = sampleMoveDistance();
+        if (moveDistance == SAMPLE_MOVE) {
+            moveDistance = sampleMoveDistance(config);
+        }
 
         // handle slip and breakdown cases, addition of steps handled in step method
         if (moveDistance == ProblemSpec.SLIP) {
             if (verbose) {
                 System.out.println("\tSampled move distance=SLIP");
             }
-            nextState = currentState.changeSlipCondition(true);
+            nextState = StateCodec.changeSlipCondition(currentState, true);
         } else if (moveDistance == ProblemSpec.BREAKDOWN) {
             if (verbose) {
                 System.out.println("\tSampled move distance=BREAKDOWN");
             }
-            nextState = currentState.changeBreakdownCondition(true);
+            nextState = StateCodec.changeBreakdownCondition(currentState, true);
         } else {
             if (verbose) {
                 System.out.println("\tSampled move distance=" + moveDistance);
             }
-            nextState = currentState.changePosition(moveDistance, ps.getN());
+            nextState = StateCodec.changePosition(currentState, moveDistance,
+                    ps.getN());
         }
 
         // handle fuel usage for level 2 and above
         if (ps.getLevel().getLevelNumber() > 1) {
-            nextState = nextState.consumeFuel(fuelRequired);
+            nextState = StateCodec.consumeFuel(nextState, fuelRequired);
         }
 
         return nextState;
@@ -216,184 +366,13 @@ public class Symulator {
 
     /**
      * Return the move distance by sampling from conditional probability
-     * distribution.
-     *
-     * N.B. this formula is not at all optimized for performance, so be wary if
-     * trying to use it for finding a policy
+     * distribution of the given config in the compiled kernel.
      *
+     * @param config the kernel config index of the current state
      * @return the move distance in range [-4, 5] or SLIP or BREAKDOWN
      */
-    private int sampleMoveDistance() {
-
-        double[] moveProbs = getMoveProbs();
-
-        double p = Math.random();
-        double pSum = 0;
-        int move = 0;
-        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
-            pSum += moveProbs[k];
-            if (p <= pSum) {
-                move = ps.convertIndexIntoMove(k);
-                break;
-            }
-        }
-        return move;
-    }
-
-    /**
-     * Calculate the conditional move probabilities for the current state.
-     *
-     *          P(K | C, D, Ti, Te, Pressure)
-     *
-     * @return list of move probabilities
-     */
-    private double[] getMoveProbs() {
-
-        // get parameters of current state
-        Terrain terrain = ps.getEnvironmentMap()[currentState.getPos() - 1];
-        int terrainIndex = ps.getTerrainIndex(terrain);
-        String car = currentState.getCarType();
-        String driver = currentState.getDriver();
-        Tire tire = currentState.getTireModel();
-
-        // calculate priors
-        double priorK = 1.0 / ProblemSpec.CAR_MOVE_RANGE;
-        double priorCar = 1.0 / ps.getCT();
-        double priorDriver = 1.0 / ps.getDT();
-        double priorTire = 1.0 / ProblemSpec.NUM_TYRE_MODELS;
-        double priorTerrain = 1.0 / ps.getNT();
-        double priorPressure = 1.0 / ProblemSpec.TIRE_PRESSURE_LEVELS;
-
-        // get probabilities of k given parameter
-        double[] pKGivenCar = ps.getCarMoveProbability().get(car);
-        double[] pKGivenDriver = ps.getDriverMoveProbability().get(driver);
-        double[] pKGivenTire = ps.getTireModelMoveProbability().get(tire);
-        double pSlipGivenTerrain = ps.getSlipProbability()[terrainIndex];
-        double[] pKGivenPressureTerrain = convertSlipProbs(pSlipGivenTerrain);
-
-        // use bayes rule to get probability of parameter given k
-        double[] pCarGivenK = bayesRule(pKGivenCar, priorCar, priorK);
-        double[] pDriverGivenK = bayesRule(pKGivenDriver, priorDriver, priorK);
-        double[] pTireGivenK = bayesRule(pKGivenTire, priorTire, priorK);
-        double[] pPressureTerrainGivenK = bayesRule(pKGivenPressureTerrain,
-                (priorTerrain * priorPressure), priorK);
-
-        // use conditional probability formula on assignment sheet to get what
-        // we want (but what is it that we want....)
-        double[] kProbs = new double[ProblemSpec.CAR_MOVE_RANGE];
-        double kProbsSum = 0;
-        double kProb;
-        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
-            kProb = magicFormula(pCarGivenK[k], pDriverGivenK[k],
-                    pTireGivenK[k], pPressureTerrainGivenK[k], priorK);
-            kProbsSum += kProb;
-            kProbs[k] = kProb;
-        }
-
-        // Normalize
-        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
-            kProbs[k] /= kProbsSum;
-        }
-
-        return kProbs;
-    }
-
-    /**
-     * Convert the probability of slipping on a given terrain with 50% tire
-     * pressure into a probability list, of move distance versus current
-     * terrain and tire pressure.
-     *
-     * @param slipProb probability of slipping on current terrain and 50%
-     *                 tire pressure
-     * @return list of move probabilities given current terrain and pressure
-     */
-    private double[] convertSlipProbs(double slipProb) {
-
-        // Adjust slip probability based on tire pressure
-        TirePressure pressure = currentState.getTirePressure();
-        if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
-            slipProb *= 2;
-        } else if (pressure == TirePressure.ONE_HUNDRED_PERCENT) {
-            slipProb *= 3;
-        }
-        // Make sure new probability is not above max
-        if (slipProb > ProblemSpec.MAX_SLIP_PROBABILITY) {
-            slipProb = ProblemSpec.MAX_SLIP_PROBABILITY;
-        }
-
-        // for each terrain, all other action probabilities are uniform over
-        // remaining probability
-        double[] kProbs = new double[ProblemSpec.CAR_MOVE_RANGE];
-        double leftOver = 1 - slipProb;
-        double otherProb = leftOver / (ProblemSpec.CAR_MOVE_RANGE - 1);
-        for (int i = 0; i < ProblemSpec.CAR_MOVE_RANGE; i++) {
-            if (i == ps.getIndexOfMove(ProblemSpec.SLIP)) {
-                kProbs[i] = slipProb;
-            } else {
-                kProbs[i] = otherProb;
-            }
-        }
-
-        return kProbs;
-    }
-
-    /**
-     * Apply bayes rule to all values in cond probs list.
-     *
-     * @param condProb list of P(B|A)
-     * @param priorA prior probability of parameter A
-     * @param priorB prior probability of parameter B
-     * @return list of P(A|B)
-     */
-    private double[] bayesRule(double[] condProb, double priorA, double priorB) {
-
-        double[] swappedProb = new double[condProb.length];
-
-        for (int i = 0; i < condProb.length; i++) {
-            swappedProb[i] = (condProb[i] * priorA) / priorB;
-        }
-        return swappedProb;
-    }
-
-    /**
-     * Conditional probability formula from assignment 2 sheet
-     *
-     * @param pA P(A | E)
-     * @param pB P(B | E)
-     * @param pC P(C | E)
-     * @param pD P(D | E)
-     * @param priorE P(E)
-     * @return numerator of the P(E | A, B, C, D) formula (still need to divide
-     *      by sum over E)
-     */
-    private double magicFormula(double pA, double pB, double pC, double pD,
-                                double priorE) {
-        return pA * pB * pC * pD * priorE;
-    }
-
-    /**
-     * Get the fuel consumption of moving given the current state
-     *
-     * @return move fuel consumption for current state
-     */
-    private int getFuelConsumption() {
-
-        // get parameters of current state
-        Terrain terrain = ps.getEnvironmentMap()[currentState.getPos() - 1];
-        String car = currentState.getCarType();
-        TirePressure pressure = currentState.getTirePressure();
-
-        // get fuel consumption
-        int terrainIndex = ps.getTerrainIndex(terrain);
-        int carIndex = ps.getCarIndex(car);
-        int fuelConsumption = ps.getFuelUsage()[terrainIndex][carIndex];
-
-        if (pressure == TirePressure.FIFTY_PERCENT) {
-            fuelConsumption *= 3;
-        } else if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
-            fuelConsumption *= 2;
-        }
-        return fuelConsumption;
+    private int sampleMoveDistance(int config) {
+        return kernel.sampleMove(config, rng.nextDouble());
     }
 
     /**
@@ -402,15 +381,16 @@ public class Symulator {
      * @param a a CHANGE_CAR action object
      * @return the next state
      */
-    private State performA2(Action a) {
+    private long performA2(Action a) {
 
-        if (currentState.getCarType().equals(a.getCarType())) {
+        int car = codec.carIndex(a.getCarType());
+        if (StateCodec.car(currentState) == car) {
             // changing to same car type does not change state but still costs a step
             // no cheap refill here, muhahaha
             return currentState;
         }
 
-        return currentState.changeCarType(a.getCarType());
+        return StateCodec.changeCarType(currentState, car);
     }
 
     /**
@@ -419,7 +399,10 @@ public class Symulator {
      * @param a a CHANGE_DRIVER action object
      * @return the next state
      */
-    private State performA3(Action a) { return currentState.changeDriver(a.getDriverType()); }
+    private long performA3(Action a) {
+        return StateCodec.changeDriver(currentState,
+                codec.driverIndex(a.getDriverType()));
+    }
 
     /**
      * Perform the CHANGE_TIRES action
@@ -427,8 +410,8 @@ public class Symulator {
      * @param a a CHANGE_TIRES action object
      * @return the next state
      */
-    private State performA4(Action a) {
-        return currentState.changeTires(a.getTireModel());
+    private long performA4(Action a) {
+        return StateCodec.changeTires(currentState, a.getTireModel().ordinal());
     }
 
     /**
@@ -437,12 +420,12 @@ public class Symulator {
      * @param a a ADD_FUEL action object
      * @return the next state
      */
-    private State performA5(Action a) {
+    private long performA5(Action a) {
         // calculate number of steps used for refueling (minus 1 since we add
         // 1 in main function
         int stepsRequired = (int) Math.ceil(a.getFuel() / (float) 10);
         steps += (stepsRequired - 1);
-        return currentState.addFuel(a.getFuel());
+        return StateCodec.addFuel(currentState, a.getFuel());
     }
 
     /**
@@ -451,8 +434,9 @@ public class Symulator {
      * @param a a CHANGE_PRESSURE action object
      * @return the next state
      */
-    private State performA6(Action a) {
-        return currentState.changeTirePressure(a.getTirePressure());
+    private long performA6(Action a) {
+        return StateCodec.changeTirePressure(currentState,
+                a.getTirePressure().ordinal());
     }
 
     /**
@@ -461,14 +445,15 @@ public class Symulator {
      * @param a a CHANGE_CAR_AND_DRIVER action object
      * @return the next state
      */
-    private State performA7(Action a) {
+    private long performA7(Action a) {
 
-        if (currentState.getCarType().equals(a.getCarType())) {
+        int car = codec.carIndex(a.getCarType());
+        int driver = codec.driverIndex(a.getDriverType());
+        if (StateCodec.car(currentState) == car) {
             // if car the same, only change driver so no sneaky fuel exploit
-            return currentState.changeDriver(a.getDriverType());
+            return StateCodec.changeDriver(currentState, driver);
         }
-        return currentState.changeCarAndDriver(a.getCarType(),
-                a.getDriverType());
+        return StateCodec.changeCarAndDriver(currentState, car, driver);
     }
 
     /**
@@ -477,9 +462,10 @@ public class Symulator {
      * @param a a CHANGE_TIRE_FUEL_PRESSURE action object
      * @return the next state
      */
-    private State performA8(Action a) {
-        return currentState.changeTireFuelAndTirePressure(a.getTireModel(),
-                a.getFuel(), a.getTirePressure());
+    private long performA8(Action a) {
+        return StateCodec.changeTireFuelAndTirePressure(currentState,
+                a.getTireModel().ordinal(), a.getFuel(),
+                a.getTirePressure().ordinal());
     }
 
     /**
@@ -495,6 +481,16 @@ public class Symulator {
         return s.getPos() >= ps.getN();
     }
 
+    /**
+     * Check whether a given packed state is the goal state or not
+     *
+     * @param s the state to check
+     * @return True if s is goal state, False otherwise
+     */
+    public boolean isGoalState(long s) {
+        return s != NO_STATE && StateCodec.pos(s) >= ps.getN();
+    }
+
     /**
      * Get the current number of steps taken in latest simulation
      *
@@ -503,5 +499,21 @@ public class Symulator {
     public int getSteps() {
         return steps;
     }
-}
 
+    /**
+     * Get the packed state the simulator is currently in
+     *
+     * @return the current state
+     */
+    public long getState() {
+        return currentState;
+    }
+
+    /**
+     * A uniform draw in [0, 1) from this simulator's generator, for random
+     * choices the search makes that should replay with the seed
+     */
+    public double nextDouble() {
+        return rng.nextDouble();
+    }
+}
@@ -0,0 +1,86 @@
+package A2Code;
+
+import problem.ProblemSpec;
+
+/**
+ * Splits a race's wall clock allowance between its decisions.
+ *
+ * Each decision's fair share is what is left of the allowance over the
+ * decisions that could still be left, ps.getMaxT() - steps, so the race can
+ * never run over however long it lasts. The share is scaled by
+ * sqrt(actions at the root / the average so far), as more actions need more
+ * simulations to tell apart, and never goes over the most a single decision
+ * may take, so no decision runs longer than a fixed budget would.
+ *
+ * MCTS.simulate(TimeManager, int) stops a decision early once its best
+ * action is separated() from the rest, and time a decision doesn't use goes
+ * back into the pot for later ones.
+ */
+public class TimeManager {
+
+    // bounds on how far a decision's share is scaled
+    private static final double MIN_SCALE = 0.5;
+    private static final double MAX_SCALE = 2.0;
+
+    // no decision gets less than this
+    private static final long MIN_MS = 5;
+
+    private final ProblemSpec ps;
+    private final ActionCatalog catalog;
+    private final long allowance;
+    private final long mostPerDecision;
+    // System.nanoTime() the race started at
+    private final long raceStart;
+
+    // sum and count of the root widths seen, for the average
+    private long widths;
+    private int decisions;
+
+    /**
+     * @param model the Model of the problem spec
+     * @param allowance wall clock time for the whole race, in ms
+     * @param mostPerDecision the longest any one decision may search, in ms
+     */
+    public TimeManager(Model model, long allowance, long mostPerDecision) {
+        if (mostPerDecision < MIN_MS) {
+            throw new IllegalArgumentException("A decision needs at least "
+                    + MIN_MS + "ms");
+        }
+        this.ps = model.getSpec();
+        this.catalog = model.getCatalog();
+        this.allowance = allowance;
+        this.mostPerDecision = mostPerDecision;
+        this.raceStart = System.nanoTime();
+    }
+
+    /**
+     * Time to search the next decision for
+     *
+     * @param root the node about to be searched
+     * @param steps time steps used so far
+     * @return the most time to search the decision for, in ms
+     */
+    public long budget(StateNode root, int steps) {
+        int left = Math.max(1, ps.getMaxT() - steps);
+        long remaining = remaining();
+        double share = (double) remaining / left;
+
+        int width = catalog.valid(root.state).length;
+        widths += width;
+        decisions++;
+        double branching = Math.sqrt(width / ((double) widths / decisions));
+
+        double scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, branching));
+
+        // leave every later decision at least its minimum
+        long most = Math.min(mostPerDecision, remaining - (left - 1) * MIN_MS);
+        return Math.max(MIN_MS, Math.min(most, (long) (share * scale)));
+    }
+
+    /**
+     * Time left of the allowance, in ms
+     */
+    public long remaining() {
+        return allowance - (System.nanoTime() - raceStart) / 1000000;
+    }
+}
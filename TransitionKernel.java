@@ -0,0 +1,376 @@
+package A2Code;
+
+import problem.ProblemSpec;
+import problem.Terrain;
+import problem.Tire;
+import problem.TirePressure;
+
+import java.util.List;
+
+/**
+ * Precompiled transition kernel for a ProblemSpec.
+ *
+ * Every (terrain, car, driver, tire, pressure) combination gets a config
+ * index. The normalised move distribution P(K | C, D, Ti, Te, Pressure) and
+ * the fuel needed to move are computed once for each config and stored in
+ * flat arrays, so the Symulator only has to do an indexed lookup per MOVE.
+ */
+public class TransitionKernel {
+
+    private final ProblemSpec ps;
+
+    private final int numCars;
+    private final int numDrivers;
+    private final int numTires;
+    private final int numPressures;
+
+    // terrain index of each position on the map (position 1 is at index 0)
+    private final int[] terrainAt;
+
+    // number of configs per terrain, terrain is the outermost part of a
+    // config index
+    private final int terrainStride;
+
+    // move distribution for config c is at [c * CAR_MOVE_RANGE, (c+1) * CAR_MOVE_RANGE)
+    private final double[] moveProbs;
+
+    // fuel required to move for each config
+    private final int[] fuelConsumption;
+
+    // move distance (or SLIP/BREAKDOWN) of each index in a move distribution
+    private final int[] moveOfIndex;
+
+    // alias tables for sampling each config's move distribution, built the
+    // first time the config is sampled
+    private final AliasTable[] aliasTables;
+
+    /**
+     * Compile the kernel for a spec. Symulators are created per simulate()
+     * call so share one kernel between them, see Model.
+     *
+     * @param ps the ProblemSpec
+     */
+    public TransitionKernel(ProblemSpec ps) {
+        this.ps = ps;
+        this.numCars = ps.getCarOrder().size();
+        this.numDrivers = ps.getDriverOrder().size();
+        this.numTires = Tire.values().length;
+        this.numPressures = TirePressure.values().length;
+
+        Terrain[] map = ps.getEnvironmentMap();
+        terrainAt = new int[map.length];
+        for (int i = 0; i < map.length; i++) {
+            terrainAt[i] = ps.getTerrainIndex(map[i]);
+        }
+
+        terrainStride = numCars * numDrivers * numTires * numPressures;
+
+        int configs = ps.getNT() * terrainStride;
+        moveProbs = new double[configs * ProblemSpec.CAR_MOVE_RANGE];
+        fuelConsumption = new int[configs];
+        aliasTables = new AliasTable[configs];
+
+        moveOfIndex = new int[ProblemSpec.CAR_MOVE_RANGE];
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            moveOfIndex[k] = ps.convertIndexIntoMove(k);
+        }
+
+        List<String> cars = ps.getCarOrder();
+        List<String> drivers = ps.getDriverOrder();
+        Tire[] tires = Tire.values();
+        TirePressure[] pressures = TirePressure.values();
+        for (int te = 0; te < ps.getNT(); te++) {
+            for (int c = 0; c < numCars; c++) {
+                for (int d = 0; d < numDrivers; d++) {
+                    for (int ti = 0; ti < numTires; ti++) {
+                        for (int p = 0; p < numPressures; p++) {
+                            int config = config(te, c, d, ti, p);
+                            compileMoveProbs(config, te, cars.get(c),
+                                    drivers.get(d), tires[ti], pressures[p]);
+                            fuelConsumption[config] = compileFuelConsumption(
+                                    te, ps.getCarIndex(cars.get(c)),
+                                    pressures[p]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Config index of a (terrain, car, driver, tire, pressure) combination
+     */
+    public int config(int terrain, int car, int driver, int tire, int pressure) {
+        return (((terrain * numCars + car) * numDrivers + driver) * numTires
+                + tire) * numPressures + pressure;
+    }
+
+    /**
+     * Config index for the given packed state at its current position
+     */
+    public int config(long state) {
+        return configAt(StateCodec.pos(state), configRest(state));
+    }
+
+    /**
+     * The part of a config index that doesn't depend on position, i.e. the
+     * state's car, driver, tire and pressure. Stays the same while moving.
+     */
+    public int configRest(long state) {
+        return config(0, StateCodec.car(state), StateCodec.driver(state),
+                StateCodec.tire(state), StateCodec.pressure(state));
+    }
+
+    /**
+     * Config index at a position for the car, driver, tire and pressure
+     * given by configRest()
+     */
+    public int configAt(int pos, int rest) {
+        return terrainAt[pos - 1] * terrainStride + rest;
+    }
+
+    /**
+     * The flat move distribution table, the distribution for a config starts
+     * at config * ProblemSpec.CAR_MOVE_RANGE
+     */
+    public double[] getMoveProbs() {
+        return moveProbs;
+    }
+
+    /**
+     * Fuel required to move in the given config
+     */
+    public int getFuelConsumption(int config) {
+        return fuelConsumption[config];
+    }
+
+    /**
+     * Sample a move distance for the given config.
+     *
+     * Uses the config's alias table so a sample costs one random number and
+     * one table probe.
+     *
+     * @param config the config index
+     * @param u a uniform random number in [0, 1)
+     * @return the move distance in range [-4, 5] or SLIP or BREAKDOWN
+     */
+    public int sampleMove(int config, double u) {
+        AliasTable table = aliasTables[config];
+        if (table == null) {
+            table = new AliasTable(moveProbs,
+                    config * ProblemSpec.CAR_MOVE_RANGE,
+                    ProblemSpec.CAR_MOVE_RANGE);
+            aliasTables[config] = table;
+        }
+        return moveOfIndex[table.sample(u)];
+    }
+
+    /**
+     * Calculate the conditional move probabilities for a config.
+     *
+     *          P(K | C, D, Ti, Te, Pressure)
+     */
+    private void compileMoveProbs(int config, int terrainIndex, String car,
+                                  String driver, Tire tire,
+                                  TirePressure pressure) {
+
+        // calculate priors
+        double priorK = 1.0 / ProblemSpec.CAR_MOVE_RANGE;
+        double priorCar = 1.0 / ps.getCT();
+        double priorDriver = 1.0 / ps.getDT();
+        double priorTire = 1.0 / ProblemSpec.NUM_TYRE_MODELS;
+        double priorTerrain = 1.0 / ps.getNT();
+        double priorPressure = 1.0 / ProblemSpec.TIRE_PRESSURE_LEVELS;
+
+        // get probabilities of k given parameter
+        double[] pKGivenCar = ps.getCarMoveProbability().get(car);
+        double[] pKGivenDriver = ps.getDriverMoveProbability().get(driver);
+        double[] pKGivenTire = ps.getTireModelMoveProbability().get(tire);
+        double pSlipGivenTerrain = ps.getSlipProbability()[terrainIndex];
+        double[] pKGivenPressureTerrain = convertSlipProbs(pSlipGivenTerrain,
+                pressure);
+
+        // use bayes rule to get probability of parameter given k
+        double[] pCarGivenK = bayesRule(pKGivenCar, priorCar, priorK);
+        double[] pDriverGivenK = bayesRule(pKGivenDriver, priorDriver, priorK);
+        double[] pTireGivenK = bayesRule(pKGivenTire, priorTire, priorK);
+        double[] pPressureTerrainGivenK = bayesRule(pKGivenPressureTerrain,
+                (priorTerrain * priorPressure), priorK);
+
+        // use conditional probability formula on assignment sheet
+        int offset = config * ProblemSpec.CAR_MOVE_RANGE;
+        double kProbsSum = 0;
+        double kProb;
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            kProb = magicFormula(pCarGivenK[k], pDriverGivenK[k],
+                    pTireGivenK[k], pPressureTerrainGivenK[k], priorK);
+            kProbsSum += kProb;
+            moveProbs[offset + k] = kProb;
+        }
+
+        // Normalize
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            moveProbs[offset + k] /= kProbsSum;
+        }
+    }
+
+    /**
+     * Convert the probability of slipping on a given terrain with 50% tire
+     * pressure into a probability list, of move distance versus terrain and
+     * tire pressure.
+     *
+     * @param slipProb probability of slipping on the terrain and 50%
+     *                 tire pressure
+     * @param pressure the tire pressure
+     * @return list of move probabilities given terrain and pressure
+     */
+    private double[] convertSlipProbs(double slipProb, TirePressure pressure) {
+
+        // Adjust slip probability based on tire pressure
+        if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
+            slipProb *= 2;
+        } else if (pressure == TirePressure.ONE_HUNDRED_PERCENT) {
+            slipProb *= 3;
+        }
+        // Make sure new probability is not above max
+        if (slipProb > ProblemSpec.MAX_SLIP_PROBABILITY) {
+            slipProb = ProblemSpec.MAX_SLIP_PROBABILITY;
+        }
+
+        // for each terrain, all other action probabilities are uniform over
+        // remaining probability
+        double[] kProbs = new double[ProblemSpec.CAR_MOVE_RANGE];
+        double leftOver = 1 - slipProb;
+        double otherProb = leftOver / (ProblemSpec.CAR_MOVE_RANGE - 1);
+        for (int i = 0; i < ProblemSpec.CAR_MOVE_RANGE; i++) {
+            if (i == ps.getIndexOfMove(ProblemSpec.SLIP)) {
+                kProbs[i] = slipProb;
+            } else {
+                kProbs[i] = otherProb;
+            }
+        }
+
+        return kProbs;
+    }
+
+    /**
+     * Apply bayes rule to all values in cond probs list.
+     *
+     * @param condProb list of P(B|A)
+     * @param priorA prior probability of parameter A
+     * @param priorB prior probability of parameter B
+     * @return list of P(A|B)
+     */
+    private double[] bayesRule(double[] condProb, double priorA, double priorB) {
+
+        double[] swappedProb = new double[condProb.length];
+
+        for (int i = 0; i < condProb.length; i++) {
+            swappedProb[i] = (condProb[i] * priorA) / priorB;
+        }
+        return swappedProb;
+    }
+
+    /**
+     * Conditional probability formula from assignment 2 sheet
+     *
+     * @param pA P(A | E)
+     * @param pB P(B | E)
+     * @param pC P(C | E)
+     * @param pD P(D | E)
+     * @param priorE P(E)
+     * @return numerator of the P(E | A, B, C, D) formula (still need to divide
+     *      by sum over E)
+     */
+    private double magicFormula(double pA, double pB, double pC, double pD,
+                                double priorE) {
+        return pA * pB * pC * pD * priorE;
+    }
+
+    /**
+     * Get the fuel consumption of moving for a terrain, car and pressure
+     *
+     * @return move fuel consumption
+     */
+    private int compileFuelConsumption(int terrainIndex, int carIndex,
+                                       TirePressure pressure) {
+        int fuelConsumption = ps.getFuelUsage()[terrainIndex][carIndex];
+
+        if (pressure == TirePressure.FIFTY_PERCENT) {
+            fuelConsumption *= 3;
+        } else if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
+            fuelConsumption *= 2;
+        }
+        return fuelConsumption;
+    }
+
+    /**
+     * Walker's alias table for a discrete distribution, built with Vose's
+     * method. Fields are final so a table built by one thread is safe to read
+     * from any other.
+     */
+    private static final class AliasTable {
+
+        // probability of keeping column i rather than taking its alias
+        private final double[] prob;
+
+        // the outcome column i falls through to
+        private final int[] alias;
+
+        AliasTable(double[] probs, int offset, int length) {
+            prob = new double[length];
+            alias = new int[length];
+
+            // scale so the average column is 1
+            double[] scaled = new double[length];
+            int[] small = new int[length];
+            int[] large = new int[length];
+            int numSmall = 0;
+            int numLarge = 0;
+            for (int i = 0; i < length; i++) {
+                scaled[i] = probs[offset + i] * length;
+                if (scaled[i] < 1.0) {
+                    small[numSmall++] = i;
+                } else {
+                    large[numLarge++] = i;
+                }
+            }
+
+            // pair each under-full column with an over-full one
+            while (numSmall > 0 && numLarge > 0) {
+                int l = small[--numSmall];
+                int g = large[--numLarge];
+                prob[l] = scaled[l];
+                alias[l] = g;
+                scaled[g] = (scaled[g] + scaled[l]) - 1.0;
+                if (scaled[g] < 1.0) {
+                    small[numSmall++] = g;
+                } else {
+                    large[numLarge++] = g;
+                }
+            }
+
+            // whatever is left is full up to rounding error
+            while (numLarge > 0) {
+                int g = large[--numLarge];
+                prob[g] = 1.0;
+                alias[g] = g;
+            }
+            while (numSmall > 0) {
+                int l = small[--numSmall];
+                prob[l] = 1.0;
+                alias[l] = l;
+            }
+        }
+
+        /**
+         * Pick a column with the integer part of u * length and use the
+         * fractional part to choose between it and its alias.
+         */
+        int sample(double u) {
+            double x = u * prob.length;
+            int i = (int) x;
+            return (x - i) < prob[i] ? i : alias[i];
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package A2Code;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transposition table for MCTS, keeps one StateNode per (state, step) so
+ * every path through the tree that reaches the same state at the same step
+ * shares its statistics, which turns the tree into a DAG.
+ *
+ * Open addressing over a fixed number of slots, keyed on the node's own
+ * state and step so no keys are stored separately. Nodes are only ever
+ * added during a search (with a compare and set, so searching threads can
+ * share the table); rebuild() drops everything that is no longer reachable
+ * and grows the table between searches.
+ */
+public class TranspositionTable {
+
+    // give up on interning a node after probing this many slots
+    private static final int MAX_PROBES = 32;
+
+    // for creating nodes
+    private final Model model;
+
+    private AtomicReferenceArray<StateNode> slots;
+    private int mask;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * @param model the Model of the problem spec being searched
+     * @param capacity initial number of slots, rounded up to a power of 2
+     */
+    public TranspositionTable(Model model, int capacity) {
+        this.model = model;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        int slotCount = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<StateNode>(slotCount);
+        mask = slotCount - 1;
+        size.reset();
+    }
+
+    private static int hash(long state, int step) {
+        long h = StateCodec.nodeKey(state, step) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Get the StateNode for reaching state at step, creating and adding one
+     * if there isn't one yet. If the table is too full to add it the new
+     * node is returned without being shared.
+     *
+     * @param state packed by StateCodec
+     * @param step time step state is reached at
+     * @return the shared node
+     */
+    public StateNode intern(long state, int step) {
+        lookups.increment();
+        StateNode created = null;
+        int i = hash(state, step) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++, i = (i + 1) & mask) {
+            StateNode node = slots.get(i);
+            if (node == null) {
+                if (created == null) {
+                    created = new StateNode(model, state, step);
+                }
+                if (slots.compareAndSet(i, null, created)) {
+                    size.increment();
+                    return created;
+                }
+                // another thread took the slot, check what it put there
+                node = slots.get(i);
+            }
+            if (node.state == state && node.step == step) {
+                hits.increment();
+                return node;
+            }
+        }
+        return created == null ? new StateNode(model, state, step) : created;
+    }
+
+    /**
+     * Empty the table and add back every node reachable from root, growing
+     * the table if it is getting full. Only call when nothing is searching.
+     *
+     * @param root the new root of the search
+     */
+    public void rebuild(StateNode root) {
+        allocate(size.intValue() * 2 > mask ? (mask + 1) * 2 : mask + 1);
+        add(root, null);
+    }
+
+    // parent is the action we reached node through, shared nodes can be left
+    // pointing into the part of the tree that was dropped, so each node is
+    // given a parent that is still reachable
+    private void add(StateNode node, ActionNode parent) {
+        int i = hash(node.state, node.step) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++, i = (i + 1) & mask) {
+            StateNode existing = slots.get(i);
+            if (existing == node) {
+                // already added through another parent
+                return;
+            }
+            if (existing == null) {
+                slots.set(i, node);
+                size.increment();
+                break;
+            }
+        }
+        node.parent = parent;
+        if (!node.hasActions) {
+            return;
+        }
+        for (ActionNode a : node.children) {
+            for (StateNode child : a.getChildren()) {
+                add(child, a);
+            }
+        }
+    }
+
+    // number of nodes in the table
+    public long size() {
+        return size.sum();
+    }
+
+    // number of intern() calls
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    // number of intern() calls that found an existing node
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // fraction of intern() calls that found an existing node
+    public double hitRate() {
+        long n = lookups.sum();
+        return n == 0 ? 0.0 : (double) hits.sum() / n;
+    }
+}
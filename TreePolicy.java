@@ -0,0 +1,195 @@
+package A2Code;
+
+/**
+ * Picks which action of a StateNode the search goes down next.
+ *
+ * Every policy reads n and Q(s, a) from the node's ActionNodes, which
+ * include the virtual losses of searches still in flight, so they can be
+ * used by the tree parallel search as is.
+ */
+public interface TreePolicy {
+
+    /**
+     * @param node a StateNode with its actions generated
+     * @param width only the first width of node.children are considered
+     * @return the ActionNode to search next
+     */
+    ActionNode select(StateNode node, int width);
+
+    /**
+     * Select from all of node's actions
+     */
+    default ActionNode select(StateNode node) {
+        return select(node, node.children.length);
+    }
+
+    /**
+     * The action taken the fewest times, which is what the uniform sweep over
+     * the root actions comes to. MCTS runs this policy as sweeps over the root
+     * only, the other policies descend the whole tree.
+     */
+    static TreePolicy uniform() {
+        return new Uniform();
+    }
+
+    /**
+     * UCB1, Q(s, a) + c * sqrt(ln N(s) / n(s, a)), untried actions first
+     *
+     * @param c exploration constant
+     */
+    static TreePolicy ucb1(double c) {
+        return new Ucb1(c);
+    }
+
+    /**
+     * PUCT, Q(s, a) + c * P(s, a) * sqrt(N(s)) / (1 + n(s, a)) with the
+     * priors P(s, a) from prior()
+     *
+     * @param c exploration constant
+     */
+    static TreePolicy puct(double c) {
+        return new Puct(c);
+    }
+
+    /**
+     * The action with the highest Q(s, a), untried actions first
+     */
+    static TreePolicy greedy() {
+        return new Greedy();
+    }
+
+    // share of the prior given to MOVE, it is the default policy and the only
+    // action that makes progress
+    double MOVE_PRIOR = 0.5;
+
+    /**
+     * Prior probability of picking action a of a node with the given number of
+     * actions: MOVE_PRIOR for MOVE, the rest split evenly
+     */
+    static double prior(ActionNode a, int actions) {
+        if (actions <= 1) {
+            return 1.0;
+        }
+        return a.id == ActionCatalog.MOVE ? MOVE_PRIOR : (1.0 - MOVE_PRIOR) / (actions - 1);
+    }
+
+    // N(s), the sum of n(s, a) over the actions of node
+    static long visits(StateNode node) {
+        if (!node.hasActions) {
+            return 0;
+        }
+        long total = 0;
+        for (ActionNode a : node.children) {
+            total += a.getN();
+        }
+        return total;
+    }
+
+    final class Uniform implements TreePolicy {
+        @Override
+        public ActionNode select(StateNode node, int width) {
+            ActionNode res = null;
+            for (int i = 0; i < width; i++) {
+                ActionNode a = node.children[i];
+                if (res == null || a.getN() < res.getN()) {
+                    res = a;
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "uniform";
+        }
+    }
+
+    final class Ucb1 implements TreePolicy {
+        private final double c;
+
+        Ucb1(double c) {
+            this.c = c;
+        }
+
+        @Override
+        public ActionNode select(StateNode node, int width) {
+            double logN = Math.log(Math.max(1, visits(node)));
+            ActionNode res = null;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < width; i++) {
+                ActionNode a = node.children[i];
+                int n = a.getN();
+                if (n == 0) {
+                    return a;
+                }
+                double score = a.getAverageExpectedValue()
+                        + c * Math.sqrt(logN / n);
+                if (score > best) {
+                    best = score;
+                    res = a;
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "ucb1 (c = " + c + ")";
+        }
+    }
+
+    final class Puct implements TreePolicy {
+        private final double c;
+
+        Puct(double c) {
+            this.c = c;
+        }
+
+        @Override
+        public ActionNode select(StateNode node, int width) {
+            double sqrtN = Math.sqrt(Math.max(1, visits(node)));
+            int actions = node.actions;
+            ActionNode res = null;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < width; i++) {
+                ActionNode a = node.children[i];
+                double score = a.getAverageExpectedValue()
+                        + c * prior(a, actions) * sqrtN / (1 + a.getN());
+                if (score > best) {
+                    best = score;
+                    res = a;
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "puct (c = " + c + ")";
+        }
+    }
+
+    final class Greedy implements TreePolicy {
+        @Override
+        public ActionNode select(StateNode node, int width) {
+            ActionNode res = null;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < width; i++) {
+                ActionNode a = node.children[i];
+                if (a.getN() == 0) {
+                    return a;
+                }
+                if (a.getAverageExpectedValue() > best) {
+                    best = a.getAverageExpectedValue();
+                    res = a;
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "greedy";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package A2Code;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import problem.Action;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The actions of a state for each level, as a list of Actions from
+ * Model.getActions() and as the ActionCatalog ids the search uses, cycling
+ * through STATES random states.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class ActionsBench {
+
+    // a power of two
+    private static final int STATES = 1024;
+
+    @Param({"1", "2", "3", "4", "5"})
+    public int level;
+
+    private Model model;
+    private ActionCatalog catalog;
+    private long[] states;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        model = Specs.load(level);
+        catalog = model.getCatalog();
+        SplittableRandom rng = new SplittableRandom(1);
+        StateIndex index = new StateIndex(model.getSpec());
+        states = new long[STATES];
+        for (int i = 0; i < STATES; i++) {
+            states[i] = index.state(rng.nextInt(index.size()));
+        }
+    }
+
+    @Benchmark
+    public List<Action> getActions() {
+        return model.getActions(states[next++ & (STATES - 1)]);
+    }
+
+    @Benchmark
+    public int[] valid() {
+        return catalog.valid(states[next++ & (STATES - 1)]);
+    }
+}
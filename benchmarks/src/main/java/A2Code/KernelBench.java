@@ -0,0 +1,68 @@
+package A2Code;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TransitionKernel lookups every MOVE makes: the config of a state,
+ * which replaced working out the move probabilities each step, and
+ * sampling a move distance from a config's alias table. Both cycle through
+ * STATES random states so the branch predictor can't learn one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class KernelBench {
+
+    // a power of two
+    private static final int STATES = 1024;
+
+    @Param({"1", "2", "3", "4", "5"})
+    public int level;
+
+    private TransitionKernel kernel;
+    private long[] states;
+    private int[] configs;
+    private SplittableRandom rng;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Model model = Specs.load(level);
+        kernel = model.getKernel();
+        rng = new SplittableRandom(1);
+        StateIndex index = new StateIndex(model.getSpec());
+        states = new long[STATES];
+        configs = new int[STATES];
+        for (int i = 0; i < STATES; i++) {
+            states[i] = index.state(rng.nextInt(index.size()));
+            configs[i] = kernel.config(states[i]);
+        }
+    }
+
+    @Benchmark
+    public int config() {
+        return kernel.config(states[next++ & (STATES - 1)]);
+    }
+
+    @Benchmark
+    public int sampleMove() {
+        return kernel.sampleMove(configs[next++ & (STATES - 1)],
+                rng.nextDouble());
+    }
+}
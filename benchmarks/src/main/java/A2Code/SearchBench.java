@@ -0,0 +1,60 @@
+package A2Code;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Level;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole decision, MCTS.simulate() from the start state with a fixed number
+ * of sweeps over the root actions rather than a time limit, so each
+ * operation does the same work before and after a change. Every operation
+ * starts on a fresh tree with the same seed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class SearchBench {
+
+    @Param({"1", "2", "3", "4", "5"})
+    public int level;
+
+    @Param({"10", "100"})
+    public int sweeps;
+
+    private Model model;
+    private long start;
+    private MCTS mcts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = Specs.load(level);
+        start = Specs.start(model);
+    }
+
+    @Setup(Level.Invocation)
+    public void newTree() {
+        mcts = new MCTS(new StateNode(model, start, 0), model,
+                new SplittableRandom(1));
+        mcts.setSweepLimit(sweeps);
+    }
+
+    @Benchmark
+    public problem.Action simulate() {
+        return mcts.simulate(0);
+    }
+}
@@ -0,0 +1,47 @@
+package A2Code;
+
+import problem.ProblemSpec;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The level 1 to 5 sample specs the benchmarks run on, read from
+ * level_N/input_lvlN.txt under the a2.specs directory, examples by default
+ * as in the course support code. Give another directory with
+ * -jvmArgsAppend -Da2.specs=dir.
+ */
+final class Specs {
+
+    private Specs() {
+    }
+
+    /**
+     * Read the sample spec for a level and set up a Model for it
+     *
+     * @param level from 1 to 5
+     * @return the Model of the spec
+     */
+    static Model load(int level) {
+        Path file = Paths.get(System.getProperty("a2.specs", "examples"),
+                "level_" + level, "input_lvl" + level + ".txt");
+        ProblemSpec ps;
+        try {
+            ps = new ProblemSpec(file.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read spec " + file, e);
+        }
+        return new Model(ps);
+    }
+
+    /**
+     * The packed start state of a spec
+     */
+    static long start(Model model) {
+        ProblemSpec ps = model.getSpec();
+        return model.getCodec().encode(simulator.State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+    }
+}
@@ -0,0 +1,71 @@
+package A2Code;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import problem.Action;
+import problem.ActionType;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One Symulator step of each action type from the start state, on the level
+ * 5 spec where every type is valid. The Symulator is reset before each step
+ * so every step starts from the same state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class SymulatorBench {
+
+    @Param({"MOVE", "CHANGE_CAR", "CHANGE_DRIVER", "CHANGE_TIRES", "ADD_FUEL",
+            "CHANGE_PRESSURE", "CHANGE_CAR_AND_DRIVER",
+            "CHANGE_TIRE_FUEL_PRESSURE"})
+    public String type;
+
+    private Symulator simon;
+    private simulator.State startState;
+    private long start;
+    private Action action;
+
+    @Setup
+    public void setUp() {
+        Model model = Specs.load(5);
+        simon = new Symulator(model, new SplittableRandom(1));
+        start = Specs.start(model);
+        startState = model.getCodec().decode(start);
+
+        // the first action of the type in the catalog
+        ActionCatalog catalog = model.getCatalog();
+        ActionType actionType = ActionType.valueOf(type);
+        for (int id = catalog.size() - 1; id >= 0; id--) {
+            if (catalog.action(id).getActionType() == actionType) {
+                action = catalog.action(id);
+            }
+        }
+    }
+
+    @Benchmark
+    public long stepPacked() {
+        simon.resetPacked(start, 0);
+        return simon.stepPacked(action);
+    }
+
+    @Benchmark
+    public simulator.State step() {
+        simon.reset(startState, 0);
+        return simon.step(action);
+    }
+}
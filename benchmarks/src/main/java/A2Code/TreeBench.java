@@ -0,0 +1,73 @@
+package A2Code;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tree operations of every backup and descent on the level 5 spec,
+ * which has the widest roots: StateNode.updateQ() over the start state's
+ * actions, and ActionNode.getStateNode() on an action with a given number
+ * of outcomes, cycling through them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class TreeBench {
+
+    @Param({"1", "8", "64"})
+    public int outcomes;
+
+    private StateNode root;
+    private ActionNode action;
+    private long[] outcomeStates;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Model model = Specs.load(5);
+        SplittableRandom rng = new SplittableRandom(1);
+
+        root = new StateNode(model, Specs.start(model), 0);
+        root.generateActionNodes(model.getCatalog());
+        for (ActionNode a : root.children) {
+            int n = 1 + rng.nextInt(1000);
+            a.setStats(n, rng.nextDouble());
+        }
+
+        action = root.children[0];
+        StateIndex index = new StateIndex(model.getSpec());
+        outcomeStates = new long[outcomes];
+        for (int i = 0; i < outcomes; i++) {
+            outcomeStates[i] = index.state(rng.nextInt(index.size()));
+            action.getOrAddChild(model, outcomeStates[i], 1);
+        }
+    }
+
+    @Benchmark
+    public double updateQ() {
+        root.updateQ();
+        return root.averageExpectedValue;
+    }
+
+    @Benchmark
+    public StateNode getStateNode() {
+        long state = outcomeStates[next];
+        next = next + 1 == outcomes ? 0 : next + 1;
+        return action.getStateNode(state, 1);
+    }
+}
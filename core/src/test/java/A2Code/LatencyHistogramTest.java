@@ -0,0 +1,83 @@
+package A2Code;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * LatencyHistogram's percentiles have to be within 1 / 256 over the ones
+ * read off the sorted latencies.
+ */
+class LatencyHistogramTest {
+
+    // latencies recorded
+    private static final int VALUES = 100000;
+
+    private static final double[] PERCENTS = {0, 0.1, 1, 10, 25, 50, 75, 90,
+            99, 99.9, 99.99, 100};
+
+    @Test
+    void percentilesMatchTheSortedLatencies() {
+        SplittableRandom rng = new SplittableRandom(1);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            // from 1ns to about 30s, as many of each size
+            values[i] = (long) Math.exp(rng.nextDouble() * 24);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(VALUES, histogram.getCount());
+        assertEquals(values[VALUES - 1], histogram.getMax());
+        for (double percent : PERCENTS) {
+            int rank = Math.max(1, (int) Math.ceil(percent / 100 * VALUES));
+            long expected = values[rank - 1];
+            long actual = histogram.percentile(percent);
+            String where = "p" + percent;
+            assertTrue(actual >= expected, where);
+            assertTrue(actual <= expected + expected / 256, where);
+        }
+    }
+
+    @Test
+    void smallLatenciesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 0; v < 512; v++) {
+            histogram.record(v);
+        }
+        assertEquals(0, histogram.percentile(0));
+        assertEquals(255, histogram.percentile(50));
+        assertEquals(511, histogram.percentile(100));
+    }
+
+    @Test
+    void negativeLatenciesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(-1);
+        assertEquals(0, histogram.percentile(100));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    void emptyIsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    void rejectsPercentilesOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThrows(IllegalArgumentException.class,
+                () -> histogram.percentile(-1));
+        assertThrows(IllegalArgumentException.class,
+                () -> histogram.percentile(100.5));
+    }
+}
@@ -0,0 +1,202 @@
+package A2Code;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import problem.ProblemSpec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Searches on the sample specs, and the statistics MCTS decides with.
+ */
+class MCTSTest {
+
+    // results behind each action of a root unless a test says otherwise
+    private static final int SAMPLES = 100;
+
+    // how many standard errors wide separated()'s bounds are
+    private static final double Z = 3.0;
+
+    // nodes a budgeted search may keep, small enough to prune every decision
+    private static final long BUDGET = 200;
+
+    // sweeps per decision, and decisions searched from the same root
+    private static final int SWEEPS = 200;
+    private static final int DECISIONS = 3;
+
+    // sweeps per decision when counting the bytes allocated, enough that
+    // what each decision allocates once doesn't count
+    private static final int ALLOCATION_SWEEPS = 5000;
+
+    @Test
+    void separatedOnAClearGap() {
+        StateNode root = root(Specs.load(1));
+        for (ActionNode a : root.children) {
+            setStats(a, SAMPLES, 0.1, 0.01);
+        }
+        setStats(root.children[1], SAMPLES, 0.9, 0.01);
+        assertTrue(MCTS.separated(root, Z));
+    }
+
+    @Test
+    void notSeparatedWhenTheBoundsOverlap() {
+        StateNode root = root(Specs.load(1));
+        for (ActionNode a : root.children) {
+            setStats(a, SAMPLES, 0.5, 0.2);
+        }
+        setStats(root.children[1], SAMPLES, 0.55, 0.2);
+        assertFalse(MCTS.separated(root, Z));
+    }
+
+    @Test
+    void neverSeparatedOnAnUnknownVariance() {
+        StateNode root = root(Specs.load(1));
+        for (ActionNode a : root.children) {
+            setStats(a, SAMPLES, 0.1, 0.01);
+        }
+        // merged statistics don't keep the sum of squares
+        root.children[1].setStats(SAMPLES, 0.9);
+        assertFalse(MCTS.separated(root, Z));
+
+        setStats(root.children[1], SAMPLES, 0.9, 0.01);
+        root.children[0].setStats(SAMPLES, 0.1);
+        assertFalse(MCTS.separated(root, Z));
+    }
+
+    @Test
+    void neverSeparatedOnTooFewSamples() {
+        StateNode root = root(Specs.load(1));
+        for (ActionNode a : root.children) {
+            setStats(a, SAMPLES, 0.1, 0.01);
+        }
+        // MIN_SAMPLES is 30
+        setStats(root.children[1], 29, 0.9, 0.01);
+        assertFalse(MCTS.separated(root, Z));
+        setStats(root.children[1], 30, 0.9, 0.01);
+        assertTrue(MCTS.separated(root, Z));
+
+        setStats(root.children[0], 29, 0.1, 0.01);
+        assertFalse(MCTS.separated(root, Z));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void prunedToTheNodeBudget(int level) {
+        MCTS mcts = budgeted(Specs.load(level), level);
+        assertWithinBudget(mcts);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void prunedToTheNodeBudgetWithATranspositionTable(int level) {
+        MCTS mcts = budgeted(Specs.load(level), level);
+        mcts.setTransposition(1 << 12);
+        assertWithinBudget(mcts);
+    }
+
+    @Test
+    void treeParallelPrunedToTheNodeBudget() {
+        MCTS mcts = budgeted(Specs.load(5), 5);
+        mcts.setWorkers(4);
+        mcts.setParallelism(MCTS.Parallelism.TREE);
+        assertWithinBudget(mcts);
+    }
+
+    // a search from the start state that keeps at most BUDGET nodes
+    private static MCTS budgeted(Model model, int seed) {
+        StateNode root = new StateNode(model, start(model), 0);
+        MCTS mcts = new MCTS(root, model, new SplittableRandom(seed));
+        mcts.setSweepLimit(SWEEPS);
+        mcts.setNodeBudget(BUDGET);
+        return mcts;
+    }
+
+    private static void assertWithinBudget(MCTS mcts) {
+        for (int i = 0; i < DECISIONS; i++) {
+            mcts.simulate(0);
+            long nodes = mcts.getNodeCount();
+            assertTrue(nodes > 0 && nodes <= BUDGET, nodes + " nodes");
+        }
+        assertTrue(mcts.prunes > 0, "never pruned");
+    }
+
+    private static long start(Model model) {
+        ProblemSpec ps = model.getSpec();
+        return model.getCodec().encode(simulator.State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void scratchRolloutsBuildNoNodes(int level) {
+        Model model = Specs.load(level);
+        StateNode root = new StateNode(model, start(model), 0);
+        MCTS mcts = new MCTS(root, model, new SplittableRandom(level));
+        mcts.setEvaluator(MCTS.Evaluator.SCRATCH);
+        mcts.setRolloutDepth(0);
+        mcts.setSweepLimit(SWEEPS);
+        mcts.simulate(0);
+
+        // uniform sweeps only add the root's actions and their outcomes
+        long nodes = 1;
+        for (ActionNode a : root.children) {
+            nodes += 1 + a.getChildCount();
+            for (StateNode child : a.getChildren()) {
+                assertFalse(child.hasActions);
+            }
+        }
+        assertEquals(nodes, MCTS.countNodes(root));
+        assertEquals(nodes, mcts.getNodeCount());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"move", "informed"})
+    void scratchRolloutsAllocateNothing(String rollout) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation =
+                (com.sun.management.ThreadMXBean) threads;
+
+        Model model = Specs.load(5);
+        model.informedRollouts = rollout.equals("informed");
+        StateNode root = new StateNode(model, start(model), 0);
+        MCTS mcts = new MCTS(root, model, new SplittableRandom(5));
+        mcts.setEvaluator(MCTS.Evaluator.SCRATCH);
+        mcts.setRolloutDepth(0);
+        // the first search makes the root's outcome nodes, there are only
+        // so many of them
+        mcts.setSweepLimit(ALLOCATION_SWEEPS);
+        mcts.simulate(0);
+
+        long iterations = mcts.iterations;
+        long before = allocation.getCurrentThreadAllocatedBytes();
+        mcts.simulate(0);
+        long bytes = allocation.getCurrentThreadAllocatedBytes() - before;
+        iterations = mcts.iterations - iterations;
+        assertTrue(bytes < iterations, bytes + " bytes allocated over "
+                + iterations + " iterations");
+    }
+
+    // the start state with an ActionNode for every valid action
+    private static StateNode root(Model model) {
+        StateNode root = new StateNode(model, start(model), 0);
+        root.generateActionNodes(model.getCatalog());
+        assertTrue(root.children.length > 2);
+        return root;
+    }
+
+    // n results with the given mean and sample standard deviation
+    private static void setStats(ActionNode a, int n, double mean,
+                                 double sd) {
+        a.setStats(n, mean, sd * sd * (n - 1) + n * mean * mean);
+    }
+}
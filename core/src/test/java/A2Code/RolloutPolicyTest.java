@@ -0,0 +1,68 @@
+package A2Code;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import problem.ProblemSpec;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * On the levels that use fuel, RolloutPolicy must not keep moving a state
+ * that hasn't the fuel to move, whenever some action would fix that.
+ */
+class RolloutPolicyTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 3, 4, 5})
+    void neverMovesWithoutTheFuelToMove(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        TransitionKernel kernel = model.getKernel();
+        ActionCatalog catalog = model.getCatalog();
+        RolloutPolicy policy = model.getRolloutPolicy();
+        Symulator simon = new Symulator(model, new SplittableRandom(level));
+        StateIndex index = new StateIndex(ps);
+
+        for (int i = 0; i < index.size(); i++) {
+            long state = index.state(i);
+            if (StateCodec.pos(state) == ps.getN()) {
+                continue;
+            }
+            int id = policy.actionId(state);
+            int[] valid = catalog.valid(state);
+            assertTrue(contains(valid, id), "invalid action " + id);
+            if (StateCodec.fuel(state) >= need(kernel, state)) {
+                continue;
+            }
+
+            // whether any action leaves the fuel to move, by the Symulator
+            boolean fixable = false;
+            for (int other : valid) {
+                simon.resetPacked(state, 0);
+                long next = simon.stepPacked(catalog.action(other));
+                fixable |= StateCodec.fuel(next) >= need(kernel, next);
+            }
+            if (fixable) {
+                assertNotEquals(ActionCatalog.MOVE, id,
+                        "moves without the fuel from " + state);
+            }
+        }
+    }
+
+    // fuel a move from state uses
+    private static int need(TransitionKernel kernel, long state) {
+        return kernel.getFuelConsumption(kernel.config(state));
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int i : ids) {
+            if (i == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,229 @@
+package A2Code;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import problem.Terrain;
+import problem.TirePressure;
+import simulator.State;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The Symulator's packed transitions have to be the ones simulator.State
+ * makes, and save() / restore() has to come back to the same point.
+ */
+class SymulatorTest {
+
+    // steps taken on each level
+    private static final int STEPS = 20000;
+
+    // one in this many actions is picked from all the valid ones, the rest
+    // are MOVE
+    private static final int MOVES = 4;
+
+    // steps taken between a save() and its restore()
+    private static final int BRANCH = 5;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void stepPackedMakesTheStateTransitions(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        StateCodec codec = model.getCodec();
+        ActionCatalog catalog = model.getCatalog();
+        Symulator packed = new Symulator(model, new SplittableRandom(level));
+        Reference reference = new Reference(ps);
+        // picks the actions and move outcomes, the same for both
+        SplittableRandom choices = new SplittableRandom(-level);
+        boolean[] taken = new boolean[ActionType.values().length];
+
+        for (int i = 0; i < STEPS; i++) {
+            assertEquals(codec.encode(reference.state), packed.getState());
+            // mostly MOVE, so the tank runs low enough for ADD_FUEL
+            int[] valid = catalog.valid(packed.getState());
+            Action a = catalog.action(choices.nextInt(MOVES) > 0
+                    ? ActionCatalog.MOVE
+                    : valid[choices.nextInt(valid.length)]);
+            taken[a.getActionType().ordinal()] = true;
+
+            long next;
+            State expected;
+            if (a.getActionType() == ActionType.MOVE) {
+                // every outcome equally often, so slips and breakdowns are
+                // covered as well as the likely moves
+                int move = ps.convertIndexIntoMove(
+                        choices.nextInt(ProblemSpec.CAR_MOVE_RANGE));
+                next = packed.stepMove(move);
+                expected = reference.step(a, move);
+            } else {
+                next = packed.stepPacked(a);
+                expected = reference.step(a, 0);
+            }
+            String where = a.getText() + " at step " + i;
+            assertEquals(reference.steps, packed.getSteps(), where);
+            if (expected == null) {
+                assertEquals(Symulator.NO_STATE, next, where);
+            } else {
+                assertEquals(codec.encode(expected), next, where);
+            }
+
+            // run on past maxT so running out of time is covered too
+            if (expected == null || packed.isGoalState(next)) {
+                packed.reset();
+                reference.reset();
+            }
+        }
+        for (ActionType type : ps.getLevel().getAvailableActions()) {
+            assertTrue(taken[type.ordinal()], type + " was never taken");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void restoreGoesBackToTheSavedPoint(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        ActionCatalog catalog = model.getCatalog();
+        Symulator simon = new Symulator(model, new SplittableRandom(level));
+        SplittableRandom choices = new SplittableRandom(-level);
+
+        for (int i = 0; i < STEPS / BRANCH; i++) {
+            long state = simon.getState();
+            int steps = simon.getSteps();
+            long saved = simon.save();
+            assertEquals(StateCodec.nodeKey(state, steps), saved);
+            assertEquals(state, StateCodec.keyState(saved));
+            assertEquals(steps, StateCodec.keyStep(saved));
+
+            for (int b = 0; b < BRANCH && simon.getSteps() < ps.getMaxT()
+                    && !simon.isGoalState(simon.getState()); b++) {
+                int[] valid = catalog.valid(simon.getState());
+                simon.stepPacked(catalog.action(
+                        valid[choices.nextInt(valid.length)]));
+            }
+            simon.restore(saved);
+            assertEquals(state, simon.getState());
+            assertEquals(steps, simon.getSteps());
+
+            // carry on from one step further along
+            long next = simon.stepPacked(catalog.action(ActionCatalog.MOVE));
+            if (next == Symulator.NO_STATE || simon.isGoalState(next)) {
+                simon.reset();
+            }
+        }
+    }
+
+    /**
+     * The transitions of the Symulator before states were packed, on
+     * simulator.State, with the outcome of a MOVE given rather than
+     * sampled.
+     */
+    private static class Reference {
+
+        private final ProblemSpec ps;
+        private State state;
+        private int steps;
+
+        Reference(ProblemSpec ps) {
+            this.ps = ps;
+            reset();
+        }
+
+        void reset() {
+            steps = 0;
+            state = State.getStartState(ps.getFirstCarType(),
+                    ps.getFirstDriver(), ps.getFirstTireModel());
+        }
+
+        // the next state, null if max time steps are exceeded
+        State step(Action a, int moveDistance) {
+            if (steps > ps.getMaxT()) {
+                return null;
+            }
+
+            State next;
+            switch (a.getActionType().getActionNo()) {
+                case 1:
+                    next = move(moveDistance);
+                    break;
+                case 2:
+                    // changing to the same car costs a step and no refill
+                    next = state.getCarType().equals(a.getCarType()) ? state
+                            : state.changeCarType(a.getCarType());
+                    break;
+                case 3:
+                    next = state.changeDriver(a.getDriverType());
+                    break;
+                case 4:
+                    next = state.changeTires(a.getTireModel());
+                    break;
+                case 5:
+                    steps += (int) Math.ceil(a.getFuel() / (float) 10) - 1;
+                    next = state.addFuel(a.getFuel());
+                    break;
+                case 6:
+                    next = state.changeTirePressure(a.getTirePressure());
+                    break;
+                case 7:
+                    next = state.getCarType().equals(a.getCarType())
+                            ? state.changeDriver(a.getDriverType())
+                            : state.changeCarAndDriver(a.getCarType(),
+                                    a.getDriverType());
+                    break;
+                default:
+                    next = state.changeTireFuelAndTirePressure(
+                            a.getTireModel(), a.getFuel(),
+                            a.getTirePressure());
+            }
+
+            if (next.isInSlipCondition()) {
+                steps += ps.getSlipRecoveryTime() - 1;
+                next = next.changeSlipCondition(false);
+            } else if (next.isInBreakdownCondition()) {
+                steps += ps.getRepairTime() - 1;
+                next = next.changeBreakdownCondition(false);
+            }
+            steps += 1;
+            state = next.copyState();
+            return next;
+        }
+
+        private State move(int moveDistance) {
+            int fuelRequired = fuelConsumption();
+            if (fuelRequired > state.getFuel()) {
+                return state;
+            }
+            State next;
+            if (moveDistance == ProblemSpec.SLIP) {
+                next = state.changeSlipCondition(true);
+            } else if (moveDistance == ProblemSpec.BREAKDOWN) {
+                next = state.changeBreakdownCondition(true);
+            } else {
+                next = state.changePosition(moveDistance, ps.getN());
+            }
+            if (ps.getLevel().getLevelNumber() > 1) {
+                next = next.consumeFuel(fuelRequired);
+            }
+            return next;
+        }
+
+        private int fuelConsumption() {
+            Terrain terrain = ps.getEnvironmentMap()[state.getPos() - 1];
+            int fuel = ps.getFuelUsage()[ps.getTerrainIndex(terrain)]
+                    [ps.getCarIndex(state.getCarType())];
+            TirePressure pressure = state.getTirePressure();
+            if (pressure == TirePressure.FIFTY_PERCENT) {
+                fuel *= 3;
+            } else if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
+                fuel *= 2;
+            }
+            return fuel;
+        }
+    }
+}
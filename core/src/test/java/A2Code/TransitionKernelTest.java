@@ -0,0 +1,169 @@
+package A2Code;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import problem.ProblemSpec;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sampling a config's move distribution through its alias table has to
+ * give the same distribution as the linear scan of the cumulative
+ * probabilities it replaced, and as getMoveProbs() itself. Checked with
+ * chi-square tests on every config of every level, at a significance low
+ * enough that a few thousand tests don't fail by chance.
+ */
+class TransitionKernelTest {
+
+    // samples per config
+    private static final int SAMPLES = 20000;
+
+    // the standard normal quantile for a significance of about 1e-7
+    private static final double Z = 5.2;
+
+    // bins with fewer expected samples than this are pooled
+    private static final double MIN_EXPECTED = 5.0;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void aliasSamplesFollowTheMoveProbabilities(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        TransitionKernel kernel = model.getKernel();
+        double[] moveProbs = kernel.getMoveProbs();
+        int range = ProblemSpec.CAR_MOVE_RANGE;
+        SplittableRandom rng = new SplittableRandom(level);
+
+        for (int config = 0; config < moveProbs.length / range; config++) {
+            long[] counts = new long[range];
+            for (int i = 0; i < SAMPLES; i++) {
+                counts[index(ps, kernel.sampleMove(config, rng.nextDouble()))]++;
+            }
+
+            double[] expected = new double[range];
+            for (int k = 0; k < range; k++) {
+                double p = moveProbs[config * range + k];
+                expected[k] = p * SAMPLES;
+                if (p == 0) {
+                    assertEquals(0, counts[k], "impossible move "
+                            + ps.convertIndexIntoMove(k) + " in config "
+                            + config);
+                }
+            }
+            assertFits(counts, expected, "config " + config);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void aliasSamplesMatchTheLinearScan(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        TransitionKernel kernel = model.getKernel();
+        double[] moveProbs = kernel.getMoveProbs();
+        int range = ProblemSpec.CAR_MOVE_RANGE;
+        SplittableRandom rng = new SplittableRandom(level);
+
+        for (int config = 0; config < moveProbs.length / range; config++) {
+            long[] alias = new long[range];
+            long[] scan = new long[range];
+            for (int i = 0; i < SAMPLES; i++) {
+                alias[index(ps, kernel.sampleMove(config, rng.nextDouble()))]++;
+                scan[linearScan(moveProbs, config * range, range,
+                        rng.nextDouble())]++;
+            }
+
+            // two sample test: each bin's expected count is half the
+            // samples both samplers put in it
+            double[] expected = new double[range];
+            long[] both = new long[2 * range];
+            double[] bothExpected = new double[2 * range];
+            for (int k = 0; k < range; k++) {
+                expected[k] = (alias[k] + scan[k]) / 2.0;
+                both[k] = alias[k];
+                both[range + k] = scan[k];
+                bothExpected[k] = expected[k];
+                bothExpected[range + k] = expected[k];
+            }
+            // range - 1 degrees of freedom for the 2 * range bins
+            assertFits(both, bothExpected, range - 1, "config " + config);
+        }
+    }
+
+    // the sampler sampleMove() replaced: walk the cumulative distribution
+    // until it passes u
+    private static int linearScan(double[] probs, int offset, int length,
+                                  double u) {
+        double cumulative = 0;
+        for (int k = 0; k < length - 1; k++) {
+            cumulative += probs[offset + k];
+            if (u < cumulative) {
+                return k;
+            }
+        }
+        return length - 1;
+    }
+
+    // index of a move distance in a move distribution
+    private static int index(ProblemSpec ps, int move) {
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            if (ps.convertIndexIntoMove(k) == move) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("Not a move: " + move);
+    }
+
+    private static void assertFits(long[] counts, double[] expected,
+                                   String what) {
+        assertFits(counts, expected, -1, what);
+    }
+
+    // chi-square goodness of fit, with bins expecting fewer than
+    // MIN_EXPECTED samples pooled into one. degrees of freedom < 0 for one
+    // less than the number of bins used
+    private static void assertFits(long[] counts, double[] expected,
+                                   int degrees, String what) {
+        double statistic = 0;
+        int bins = 0;
+        long pooledCount = 0;
+        double pooledExpected = 0;
+        for (int k = 0; k < counts.length; k++) {
+            if (expected[k] < MIN_EXPECTED) {
+                pooledCount += counts[k];
+                pooledExpected += expected[k];
+            } else {
+                double d = counts[k] - expected[k];
+                statistic += d * d / expected[k];
+                bins++;
+            }
+        }
+        if (pooledExpected >= MIN_EXPECTED) {
+            double d = pooledCount - pooledExpected;
+            statistic += d * d / pooledExpected;
+            bins++;
+        } else {
+            // too rare to test on their own, but can't be common either
+            assertTrue(pooledCount < 4 * MIN_EXPECTED, what + ": "
+                    + pooledCount + " samples of moves expected "
+                    + pooledExpected + " times");
+        }
+        int df = degrees < 0 ? bins - 1 : Math.min(degrees, bins - 1);
+        if (df < 1) {
+            return;
+        }
+        double critical = critical(df);
+        assertTrue(statistic < critical, what + ": chi-square " + statistic
+                + " over " + critical + " with " + df + " degrees of freedom");
+    }
+
+    // Wilson-Hilferty approximation of the chi-square quantile at Z
+    private static double critical(int df) {
+        double h = 2.0 / (9.0 * df);
+        double c = 1 - h + Z * Math.sqrt(h);
+        return df * c * c * c;
+    }
+}
@@ -0,0 +1,143 @@
+package A2Code;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import problem.ProblemSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A TranspositionTable has to hand back the same StateNode for a (state,
+ * step) after rebuild() as before it, with a parent the node can still be
+ * reached through.
+ */
+class TranspositionTableTest {
+
+    // random walks through the tree and the most actions on each
+    private static final int WALKS = 200;
+    private static final int DEPTH = 30;
+
+    // big enough that every node of the walks fits
+    private static final int CAPACITY = 1 << 16;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void rebuildKeepsNodesAndParents(int level) {
+        Model model = Specs.load(level);
+        ProblemSpec ps = model.getSpec();
+        ActionCatalog catalog = model.getCatalog();
+        TranspositionTable table = new TranspositionTable(model, CAPACITY);
+        Symulator simon = new Symulator(model, new SplittableRandom(level));
+        SplittableRandom choices = new SplittableRandom(-level);
+        StateNode root = table.intern(start(model), 0);
+        List<StateNode> nodes = new ArrayList<>();
+
+        for (int w = 0; w < WALKS; w++) {
+            simon.resetPacked(root.state, root.step);
+            StateNode node = root;
+            for (int d = 0; d < DEPTH && simon.getSteps() < ps.getMaxT()
+                    && !simon.isGoalState(node.state); d++) {
+                node.generateActionNodes(catalog);
+                ActionNode a = node.children[choices.nextInt(
+                        node.children.length)];
+                long next = simon.stepPacked(a.action);
+                StateNode child = table.intern(next, simon.getSteps());
+                a.addChild(child);
+                nodes.add(child);
+                node = child;
+            }
+        }
+        // some paths have to have met, or there is nothing shared to keep
+        assertTrue(table.getHits() > 0);
+
+        for (int i = 0; i < 2; i++) {
+            table.rebuild(root);
+            assertNull(root.parent);
+            for (StateNode node : nodes) {
+                assertSame(node, table.intern(node.state, node.step));
+                assertReachable(root, node);
+            }
+        }
+    }
+
+    @Test
+    void rebuildMovesASharedNodeToTheParentLeft() {
+        Model model = Specs.load(1);
+        ActionCatalog catalog = model.getCatalog();
+        TranspositionTable table = new TranspositionTable(model, CAPACITY);
+        long start = start(model);
+        StateNode root = table.intern(start, 0);
+        root.generateActionNodes(catalog);
+
+        // root -a-> x -> shared and root -b-> y -> shared
+        ActionNode a = root.children[0];
+        ActionNode b = root.children[1];
+        StateNode x = table.intern(StateCodec.changePosition(start, 1, 10), 1);
+        StateNode y = table.intern(StateCodec.changePosition(start, 2, 10), 1);
+        a.addChild(x);
+        b.addChild(y);
+        x.generateActionNodes(catalog);
+        y.generateActionNodes(catalog);
+        StateNode shared = table.intern(
+                StateCodec.changePosition(start, 3, 10), 2);
+        y.children[0].addChild(shared);
+        // the last action to add a node becomes its parent
+        x.children[0].addChild(table.intern(shared.state, shared.step));
+        assertSame(x.children[0], shared.parent);
+
+        // drop the branch through x, shared is only reached through y now
+        assertTrue(a.removeChild(x));
+        table.rebuild(root);
+        assertSame(shared, table.intern(shared.state, shared.step));
+        assertSame(y.children[0], shared.parent);
+        assertReachable(root, shared);
+        assertNotSame(x, table.intern(x.state, x.step));
+    }
+
+    @Test
+    void rebuildDropsNodesNoLongerReachable() {
+        Model model = Specs.load(1);
+        TranspositionTable table = new TranspositionTable(model, CAPACITY);
+        long start = start(model);
+        StateNode root = table.intern(start, 0);
+        StateNode orphan = table.intern(
+                StateCodec.changePosition(start, 1, 10), 1);
+        assertEquals(2, table.size());
+
+        table.rebuild(root);
+        assertEquals(1, table.size());
+        assertSame(root, table.intern(start, 0));
+        assertNotSame(orphan, table.intern(orphan.state, orphan.step));
+    }
+
+    // follows node's parents up to root, each has to list the one below
+    private static void assertReachable(StateNode root, StateNode node) {
+        StateNode at = node;
+        for (int i = 0; at != root; i++) {
+            ActionNode parent = at.parent;
+            assertTrue(parent != null && i < node.step, "not under the root");
+            boolean listed = false;
+            for (StateNode child : parent.getChildren()) {
+                listed |= child == at;
+            }
+            assertTrue(listed, "parent doesn't list the node");
+            at = parent.parent;
+        }
+    }
+
+    private static long start(Model model) {
+        ProblemSpec ps = model.getSpec();
+        return model.getCodec().encode(simulator.State.getStartState(
+                ps.getFirstCarType(), ps.getFirstDriver(),
+                ps.getFirstTireModel()));
+    }
+}